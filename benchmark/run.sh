@@ -0,0 +1,25 @@
+#!/bin/sh
+# Compiles and runs one of the benchmark tools on a plain JVM (no Android
+# needed): ParserBenchmark (default), StandInServer or LoadHarness. The
+# fixtures directory is passed as the first argument of the tool.
+#
+# Usage: benchmark/run.sh [tool] [arguments]
+# Set JSOUP_JAR to the Jsoup jar the app is built with.
+
+cd "$(dirname "$0")/.." || exit 1
+JSOUP_JAR=${JSOUP_JAR:-libs/jsoup.jar}
+OUT=benchmark/out
+APP=src/be/maartendecat/kotnetlogin
+
+TOOL=ParserBenchmark
+case "$1" in
+	ParserBenchmark|StandInServer|LoadHarness) TOOL=$1; shift ;;
+esac
+
+# the login core: all classes of the app that do not depend on Android
+CORE=$(grep -L '^import android' $APP/*.java)
+
+rm -rf "$OUT" && mkdir -p "$OUT" || exit 1
+javac -nowarn -d "$OUT" -cp "$JSOUP_JAR" \
+	$CORE benchmark/src/be/maartendecat/kotnetlogin/bench/*.java || exit 1
+exec java -cp "$OUT:$JSOUP_JAR" be.maartendecat.kotnetlogin.bench.$TOOL benchmark/fixtures "$@"
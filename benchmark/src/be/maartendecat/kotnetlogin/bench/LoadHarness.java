@@ -0,0 +1,216 @@
+package be.maartendecat.kotnetlogin.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.maartendecat.kotnetlogin.JvmPlatform;
+import be.maartendecat.kotnetlogin.LoginFormCache;
+import be.maartendecat.kotnetlogin.LoginManager;
+import be.maartendecat.kotnetlogin.LoginManager.LoginMetricsListener;
+import be.maartendecat.kotnetlogin.LoginManager.LoginProcedureListener;
+import be.maartendecat.kotnetlogin.LoginSession;
+import be.maartendecat.kotnetlogin.Platform;
+import be.maartendecat.kotnetlogin.StageTimings;
+
+/**
+ * Runs many logins against a netlogin (stand-in) concurrently and reports the
+ * tap-to-result latency percentiles and the outcomes.
+ *
+ * Every login is a {@link LoginSession} of its own, like a separate device,
+ * driven by the {@link LoginManager} of the app on a {@link JvmPlatform}: the
+ * manager decides how many sessions run at once and which wait for a slot.
+ * Up to concurrency logins are started at the same time.
+ *
+ * Usage: LoadHarness [fixtures directory] [key=value...] with the keys
+ * concurrency, logins, url (of a running netlogin, by default a
+ * {@link StandInServer} is started) and the keys of
+ * {@link StandInServer.Config}.
+ *
+ * @author maartend
+ *
+ */
+public class LoadHarness {
+
+	private static final long TIMEOUT = 30 * 1000;
+
+	/****************************
+	 * MAIN
+	 ****************************/
+
+	public static void main(String[] args) throws Exception {
+		File fixtures = new File(args.length > 0 ? args[0] : "benchmark/fixtures");
+		int concurrency = 8;
+		int logins = 200;
+		String url = null;
+		StandInServer.Config config = new StandInServer.Config();
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].startsWith("concurrency=")) {
+				concurrency = Integer.parseInt(args[i].substring("concurrency=".length()));
+			} else if(args[i].startsWith("logins=")) {
+				logins = Integer.parseInt(args[i].substring("logins=".length()));
+			} else if(args[i].startsWith("url=")) {
+				url = args[i].substring("url=".length());
+			} else {
+				config.set(args[i]);
+			}
+		}
+
+		StandInServer server = null;
+		if(url == null) {
+			server = new StandInServer(fixtures, 0, config);
+			server.start();
+			url = server.getLoginPageUrl();
+		}
+		Platform.initialize(new JvmPlatform(System.err, false));
+		try {
+			run(url, config.password, concurrency, logins);
+		} finally {
+			if(server != null) {
+				server.stop();
+			}
+		}
+	}
+
+	/****************************
+	 * LOAD
+	 ****************************/
+
+	private static void run(final String url, String password, int concurrency, int logins) throws Exception {
+		final LoginManager manager = LoginManager.getInstance();
+		final AtomicLong wireBytes = new AtomicLong();
+		final AtomicLong decodedBytes = new AtomicLong();
+		onMainThread(new Runnable() {
+			public void run() {
+				manager.setLoginPageUrl(url);
+				// every login should reach the login page
+				manager.setProbeUrl(null);
+				manager.registerLoginMetricsListener(new LoginMetricsListener() {
+					public void onProcedureTimed(StageTimings timings) {
+						wireBytes.addAndGet(timings.getWireBytes());
+						decodedBytes.addAndGet(timings.getDecodedBytes());
+					}
+				});
+			}
+		});
+
+		Semaphore inFlight = new Semaphore(concurrency);
+		BlockingQueue<Login> done = new LinkedBlockingQueue<Login>();
+		long start = System.nanoTime();
+		for(int i = 0; i < logins; i++) {
+			inFlight.acquire();
+			// every tenth login uses a wrong password
+			String loginPassword = (i % 10 == 9) ? "wrong" : password;
+			login(manager, "r" + (1000000 + i), loginPassword, inFlight, done);
+		}
+		long[] latencies = new long[logins];
+		Map<String, Integer> outcomes = new TreeMap<String, Integer>();
+		for(int i = 0; i < logins; i++) {
+			Login login = done.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			if(login == null) {
+				throw new IllegalStateException((logins - i) + " logins did not finish");
+			}
+			latencies[i] = login.nanos;
+			Integer count = outcomes.get(login.outcome);
+			outcomes.put(login.outcome, count == null ? 1 : count + 1);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		Arrays.sort(latencies);
+		System.out.println(String.format("%d logins, concurrency %d, %.1f logins/s",
+				logins, concurrency, logins * 1e9 / elapsed));
+		System.out.println(String.format("latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+				percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+				latencies[latencies.length - 1] / 1e6));
+		System.out.println(String.format("bytes per login: %d received, %d decompressed",
+				wireBytes.get() / logins, decodedBytes.get() / logins));
+		LoginFormCache formCache = manager.getFormCache();
+		System.out.println(String.format("fast path: %d accepted, %d rejected",
+				formCache.getHits(), formCache.getMisses()));
+		for(Map.Entry<String, Integer> outcome: outcomes.entrySet()) {
+			System.out.println("  " + outcome.getKey() + ": " + outcome.getValue());
+		}
+	}
+
+	/**
+	 * The outcome and the duration of one login.
+	 */
+	private static class Login {
+		final String outcome;
+		final long nanos;
+
+		Login(String outcome, long nanos) {
+			this.outcome = outcome;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Starts one login in a session of its own, the way the app does. When it
+	 * ends, the login is added to the given queue and its permit released.
+	 */
+	private static void login(final LoginManager manager, final String username, final String password,
+			final Semaphore inFlight, final BlockingQueue<Login> done) {
+		final long start = System.nanoTime();
+		Platform.getInstance().runOnMainThread(new Runnable() {
+			public void run() {
+				LoginSession session = manager.createSession(username, password);
+				session.registerLoginProcedureListener(new LoginProcedureListener() {
+					public void onLoginProcedureStarted(String username) {
+					}
+
+					public void onNewStageReached(String description) {
+					}
+
+					public void onProcedureError(String description) {
+						finish("ERROR " + description);
+					}
+
+					public void onProcedureSuccess() {
+						finish("SUCCESS");
+					}
+
+					public void onProcedureFailure(String description) {
+						finish("FAILURE");
+					}
+
+					private void finish(String outcome) {
+						done.add(new Login(outcome, System.nanoTime() - start));
+						inFlight.release();
+					}
+				});
+				session.start();
+			}
+		});
+	}
+
+	/**
+	 * Runs the given task on the main loop and waits for it.
+	 */
+	private static void onMainThread(final Runnable task) throws InterruptedException {
+		final Semaphore ran = new Semaphore(0);
+		Platform.getInstance().runOnMainThread(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					ran.release();
+				}
+			}
+		});
+		ran.acquire();
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))] / 1e6;
+	}
+
+}
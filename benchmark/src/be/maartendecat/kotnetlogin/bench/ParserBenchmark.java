@@ -0,0 +1,279 @@
+package be.maartendecat.kotnetlogin.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.select.Elements;
+
+import be.maartendecat.kotnetlogin.LoginForm;
+import be.maartendecat.kotnetlogin.LoginFormExtractor;
+import be.maartendecat.kotnetlogin.ResultClassifier;
+
+/**
+ * Benchmark of the processing of the login page and the result page, on a
+ * plain JVM. Every strategy is run against every fixture of its kind: first
+ * for a warmup period, then for a measurement period. Reported per operation
+ * are the throughput, the latency (mean and percentiles) and the number of
+ * bytes allocated.
+ *
+ * Usage: ParserBenchmark [fixtures directory] [measurement seconds]
+ *
+ * @author maartend
+ *
+ */
+public class ParserBenchmark {
+
+	private static final String CHARSET = "ISO-8859-1";
+
+	/**
+	 * Size of the filler added to the fixtures to get oversized pages.
+	 */
+	private static final int OVERSIZE = 1024 * 1024;
+
+	/**
+	 * Results are accumulated here so the JIT cannot drop the operations.
+	 */
+	private static volatile int sink;
+
+	/****************************
+	 * OPERATIONS
+	 ****************************/
+
+	/**
+	 * A way of processing a page.
+	 */
+	private interface Strategy {
+		public String getName();
+		public Object process(byte[] page) throws Exception;
+	}
+
+	/**
+	 * The streaming login form extractor, with the Jsoup fallback.
+	 */
+	private static final Strategy STREAMING_FORM = new Strategy() {
+		public String getName() {
+			return "form/streaming";
+		}
+		public Object process(byte[] page) throws Exception {
+			LoginFormExtractor extractor = new LoginFormExtractor(new InputStreamReader(new ByteArrayInputStream(page), CHARSET));
+			LoginForm form = extractor.extract();
+			if(form == null) {
+				form = LoginForm.fromDocument(Jsoup.parse(extractor.getConsumedText()));
+			}
+			return form;
+		}
+	};
+
+	/**
+	 * The full Jsoup parse with selectors.
+	 */
+	private static final Strategy JSOUP_FORM = new Strategy() {
+		public String getName() {
+			return "form/jsoup";
+		}
+		public Object process(byte[] page) throws Exception {
+			return LoginForm.fromDocument(Jsoup.parse(new ByteArrayInputStream(page), CHARSET, ""));
+		}
+	};
+
+	/**
+	 * The streaming result page classifier.
+	 */
+	private static final Strategy STREAMING_RESULT = new Strategy() {
+		private final ResultClassifier classifier = new ResultClassifier();
+		public String getName() {
+			return "result/streaming";
+		}
+		public Object process(byte[] page) throws Exception {
+			ResultClassifier.Result result = classifier.classify(new ByteArrayInputStream(page), CHARSET);
+			return result.getOutcome() + ":" + result.getMessage();
+		}
+	};
+
+	/**
+	 * The full Jsoup parse with a text search, as in the original code.
+	 */
+	private static final Strategy JSOUP_RESULT = new Strategy() {
+		public String getName() {
+			return "result/jsoup";
+		}
+		public Object process(byte[] page) throws Exception {
+			Document document = Jsoup.parse(new ByteArrayInputStream(page), CHARSET, "");
+			Elements errorMsgs = document.getElementsMatchingText("Login NIET geslaagd").select("font");
+			if(errorMsgs.isEmpty()) {
+				return "SUCCESS:null";
+			}
+			return "FAILURE:" + errorMsgs.first().nextElementSibling().text();
+		}
+	};
+
+	/****************************
+	 * MAIN
+	 ****************************/
+
+	public static void main(String[] args) throws Exception {
+		File fixtures = new File(args.length > 0 ? args[0] : "benchmark/fixtures");
+		long measureMillis = 1000 * (args.length > 1 ? Long.parseLong(args[1]) : 3);
+		long warmupMillis = measureMillis / 2;
+
+		byte[] login = read(new File(fixtures, "login.html"));
+		byte[] success = read(new File(fixtures, "result-success.html"));
+		String[] loginPages = { "login.html", "login-changed-layout.html", "login-oversized" };
+		byte[][] loginData = { login, read(new File(fixtures, "login-changed-layout.html")), oversize(login) };
+		String[] resultPages = { "result-success.html", "result-failure.html", "result-oversized" };
+		byte[][] resultData = { success, read(new File(fixtures, "result-failure.html")), oversize(success) };
+
+		System.out.println(String.format("%-18s %-27s %12s %10s %10s %10s %12s",
+				"strategy", "fixture", "ops/s", "mean us", "p50 us", "p99 us", "alloc B/op"));
+		run(Arrays.asList(STREAMING_FORM, JSOUP_FORM), loginPages, loginData, warmupMillis, measureMillis);
+		run(Arrays.asList(STREAMING_RESULT, JSOUP_RESULT), resultPages, resultData, warmupMillis, measureMillis);
+	}
+
+	/**
+	 * Checks that all strategies agree on every page, then benchmarks them.
+	 */
+	private static void run(List<Strategy> strategies, String[] names, byte[][] pages, long warmupMillis, long measureMillis) throws Exception {
+		for(int i = 0; i < pages.length; i++) {
+			String expected = describe(strategies.get(0), pages[i]);
+			for(Strategy strategy: strategies) {
+				String actual = describe(strategy, pages[i]);
+				if(!actual.equals(expected)) {
+					System.out.println("MISMATCH on " + names[i] + ": " + strategies.get(0).getName() + " gives "
+							+ expected + ", " + strategy.getName() + " gives " + actual);
+				}
+			}
+		}
+		for(int i = 0; i < pages.length; i++) {
+			for(Strategy strategy: strategies) {
+				measure(strategy, pages[i], warmupMillis);
+				Measurement m = measure(strategy, pages[i], measureMillis);
+				System.out.println(String.format("%-18s %-27s %12.1f %10.1f %10.1f %10.1f %12s",
+						strategy.getName(), names[i], m.opsPerSecond(), m.meanMicros(), m.percentileMicros(0.5),
+						m.percentileMicros(0.99), m.allocatedPerOp < 0 ? "n/a" : String.valueOf(m.allocatedPerOp)));
+			}
+		}
+	}
+
+	/****************************
+	 * MEASUREMENT
+	 ****************************/
+
+	private static class Measurement {
+		long[] latencies;
+		int count;
+		long totalNanos;
+		long allocatedPerOp;
+
+		double opsPerSecond() {
+			return count * 1e9 / totalNanos;
+		}
+
+		double meanMicros() {
+			return totalNanos / 1e3 / count;
+		}
+
+		double percentileMicros(double p) {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			return sorted[(int) Math.min(count - 1, Math.floor(p * count))] / 1e3;
+		}
+	}
+
+	private static Measurement measure(Strategy strategy, byte[] page, long millis) throws Exception {
+		Measurement m = new Measurement();
+		m.latencies = new long[1024];
+		long allocatedBefore = allocatedBytes();
+		long end = System.nanoTime() + millis * 1000000L;
+		long start = System.nanoTime();
+		long now = start;
+		while(now < end) {
+			Object result = strategy.process(page);
+			long after = System.nanoTime();
+			sink += result.hashCode();
+			if(m.count == m.latencies.length) {
+				m.latencies = Arrays.copyOf(m.latencies, m.count * 2);
+			}
+			m.latencies[m.count++] = after - now;
+			now = after;
+		}
+		m.totalNanos = now - start;
+		long allocatedAfter = allocatedBytes();
+		m.allocatedPerOp = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / m.count;
+		return m;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread, -1 if the
+	 * JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	private static String describe(Strategy strategy, byte[] page) {
+		try {
+			Object result = strategy.process(page);
+			if(result instanceof LoginForm) {
+				LoginForm form = (LoginForm) result;
+				return form.getAction() + " " + form.getHiddenInputs() + " " + form.getPasswordField();
+			}
+			return String.valueOf(result);
+		} catch (Exception e) {
+			return e.toString();
+		}
+	}
+
+	/**
+	 * Returns the given page padded with about OVERSIZE bytes of filler
+	 * paragraphs, a sixteenth before the body and the rest at the end.
+	 */
+	private static byte[] oversize(byte[] page) throws IOException {
+		String html = new String(page, CHARSET);
+		StringBuilder filler = new StringBuilder();
+		List<String> paragraphs = new ArrayList<String>();
+		for(int i = 0; i < 10; i++) {
+			paragraphs.add("<p class=\"news\">Nieuwsbericht " + i + ": <a href=\"/nieuws/" + i + "\">lees meer</a> over het netwerk.</p>\n");
+		}
+		for(int i = 0; filler.length() < OVERSIZE; i++) {
+			filler.append(paragraphs.get(i % paragraphs.size()));
+		}
+		int split = filler.length() / 16;
+		String result = html.replaceFirst("(?i)<body([^>]*)>", "<body$1>\n" + filler.substring(0, split))
+				.replaceFirst("(?i)</body>", filler.substring(split) + "</body>");
+		return result.getBytes(CHARSET);
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int length = 0;
+			int read;
+			while(length < data.length && (read = in.read(data, length, data.length - length)) != -1) {
+				length += read;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+}
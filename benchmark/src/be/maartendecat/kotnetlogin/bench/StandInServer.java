@@ -0,0 +1,378 @@
+package be.maartendecat.kotnetlogin.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for netlogin, for testing the login procedure without the
+ * real KU Leuven servers.
+ *
+ * The server serves a wayf2.pl-style login page (from the benchmark fixtures)
+ * with a new password field name for every request, remembered per session
+ * cookie, and accepts the POST of the login form: the success page if the
+ * password field name, the session and the password are correct, the "Login
+ * NIET geslaagd" page for a wrong password and the login page again for a
+ * stale form. It also serves a "204 No Content" probe URL.
+ *
+ * Latency, jitter, bandwidth, compression and errors can be configured to
+ * mimic a busy netlogin.
+ *
+ * Usage: StandInServer [fixtures directory] [port] [key=value...]
+ * with the keys of {@link Config}.
+ *
+ * @author maartend
+ *
+ */
+public class StandInServer {
+
+	private static final String CHARSET = "ISO-8859-1";
+
+	/**
+	 * The password field name in the login page fixture, replaced by a new one
+	 * for every request.
+	 */
+	private static final String FIXTURE_PASSWORD_FIELD = "pwd483920";
+
+	static {
+		// the headers and the body are written separately: without this, the
+		// body waits for the delayed ACK of the headers
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	/****************************
+	 * CONFIGURATION
+	 ****************************/
+
+	public static class Config {
+
+		/**
+		 * Time before each response is sent, in milliseconds.
+		 */
+		public long latency = 50;
+
+		/**
+		 * Maximal random time added to the latency, in milliseconds.
+		 */
+		public long jitter = 20;
+
+		/**
+		 * Bandwidth of each response in bytes per second, 0 for unlimited.
+		 */
+		public long bandwidth = 0;
+
+		/**
+		 * Probability that a request is answered with "503 Service Unavailable".
+		 */
+		public double errorRate = 0;
+
+		/**
+		 * The password accepted for any username.
+		 */
+		public String password = "secret";
+
+		/**
+		 * The compression of the pages, if the client accepts it: "none",
+		 * "gzip" or "deflate".
+		 */
+		public String compression = "none";
+
+		/**
+		 * Sets a configuration value from a "key=value" argument.
+		 */
+		public void set(String argument) {
+			String[] parts = argument.split("=", 2);
+			if(parts.length != 2) {
+				throw new IllegalArgumentException("Expected key=value: " + argument);
+			}
+			if(parts[0].equals("latency")) {
+				latency = Long.parseLong(parts[1]);
+			} else if(parts[0].equals("jitter")) {
+				jitter = Long.parseLong(parts[1]);
+			} else if(parts[0].equals("bandwidth")) {
+				bandwidth = Long.parseLong(parts[1]);
+			} else if(parts[0].equals("errorRate")) {
+				errorRate = Double.parseDouble(parts[1]);
+			} else if(parts[0].equals("password")) {
+				password = parts[1];
+			} else if(parts[0].equals("compression")) {
+				if(!parts[1].equals("none") && !parts[1].equals("gzip") && !parts[1].equals("deflate")) {
+					throw new IllegalArgumentException("Unknown compression: " + parts[1]);
+				}
+				compression = parts[1];
+			} else {
+				throw new IllegalArgumentException("Unknown key: " + parts[0]);
+			}
+		}
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final Config config;
+	private final String loginPage;
+	private final byte[] successPage;
+	private final byte[] failurePage;
+
+	/**
+	 * The password field name handed out to each session.
+	 */
+	private final Map<String, String> sessions = new ConcurrentHashMap<String, String>();
+	private final AtomicLong sessionCounter = new AtomicLong();
+	private final Random random = new Random();
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public StandInServer(File fixtures, int port, Config config) throws IOException {
+		this.config = config;
+		this.loginPage = new String(read(new File(fixtures, "login.html")), CHARSET);
+		this.successPage = read(new File(fixtures, "result-success.html"));
+		this.failurePage = read(new File(fixtures, "result-failure.html"));
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 64);
+		server.createContext("/cgi-bin/wayf2.pl", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleLoginPage(exchange);
+			}
+		});
+		server.createContext("/cgi-bin/netlogin.pl", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleLogin(exchange);
+			}
+		});
+		server.createContext("/generate_204", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if(delayOrFail(exchange)) {
+					exchange.sendResponseHeaders(204, -1);
+				}
+				exchange.close();
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+	}
+
+	/****************************
+	 * LIFECYCLE
+	 ****************************/
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public String getLoginPageUrl() {
+		return getBaseUrl() + "/cgi-bin/wayf2.pl?inst=kuleuven&lang=nl&submit=Ga+verder+%2F+Continue";
+	}
+
+	public String getProbeUrl() {
+		return getBaseUrl() + "/generate_204";
+	}
+
+	/****************************
+	 * HANDLERS
+	 ****************************/
+
+	private void handleLoginPage(HttpExchange exchange) throws IOException {
+		try {
+			if(!delayOrFail(exchange)) {
+				return;
+			}
+			String session = getSession(exchange);
+			if(session == null) {
+				session = "s" + sessionCounter.incrementAndGet();
+				exchange.getResponseHeaders().add("Set-Cookie", "sid=" + session + "; Path=/");
+			}
+			String passwordField;
+			synchronized(random) {
+				passwordField = "pwd" + (100000 + random.nextInt(900000));
+			}
+			sessions.put(session, passwordField);
+			send(exchange, loginPage.replace(FIXTURE_PASSWORD_FIELD, passwordField).getBytes(CHARSET));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleLogin(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> form = parseForm(read(exchange.getRequestBody()));
+			if(!delayOrFail(exchange)) {
+				return;
+			}
+			String session = getSession(exchange);
+			String passwordField = (session == null) ? null : sessions.remove(session);
+			if(passwordField == null || !form.containsKey(passwordField) || !form.containsKey("uid")) {
+				// stale or forged form: show the login page again
+				send(exchange, loginPage.getBytes(CHARSET));
+			} else if(config.password.equals(form.get(passwordField))) {
+				send(exchange, successPage);
+			} else {
+				send(exchange, failurePage);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Waits for the configured latency and injects errors. Returns false if an
+	 * error was sent.
+	 */
+	private boolean delayOrFail(HttpExchange exchange) throws IOException {
+		long delay;
+		boolean fail;
+		synchronized(random) {
+			delay = config.latency + (config.jitter > 0 ? (long) (random.nextDouble() * config.jitter) : 0);
+			fail = random.nextDouble() < config.errorRate;
+		}
+		sleep(delay);
+		if(fail) {
+			exchange.sendResponseHeaders(503, -1);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the given page, compressed if configured and accepted, throttled to
+	 * the configured bandwidth.
+	 */
+	private void send(HttpExchange exchange, byte[] page) throws IOException {
+		exchange.getResponseHeaders().add("Content-Type", "text/html; charset=" + CHARSET);
+		String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if(!config.compression.equals("none") && accepted != null && accepted.contains(config.compression)) {
+			exchange.getResponseHeaders().add("Content-Encoding", config.compression);
+			page = compress(page, config.compression);
+		}
+		exchange.sendResponseHeaders(200, page.length);
+		OutputStream out = exchange.getResponseBody();
+		if(config.bandwidth <= 0) {
+			out.write(page);
+		} else {
+			int chunk = 1024;
+			for(int offset = 0; offset < page.length; offset += chunk) {
+				int length = Math.min(chunk, page.length - offset);
+				out.write(page, offset, length);
+				out.flush();
+				sleep(length * 1000L / config.bandwidth);
+			}
+		}
+		out.close();
+	}
+
+	private static byte[] compress(byte[] page, String compression) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		OutputStream out = compression.equals("gzip") ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed);
+		out.write(page);
+		out.close();
+		return compressed.toByteArray();
+	}
+
+	private static String getSession(HttpExchange exchange) {
+		String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+		if(cookies == null) {
+			return null;
+		}
+		for(String cookie: cookies.split(";")) {
+			cookie = cookie.trim();
+			if(cookie.startsWith("sid=")) {
+				return cookie.substring("sid=".length());
+			}
+		}
+		return null;
+	}
+
+	private static Map<String, String> parseForm(byte[] body) throws IOException {
+		Map<String, String> form = new HashMap<String, String>();
+		for(String field: new String(body, CHARSET).split("&")) {
+			String[] parts = field.split("=", 2);
+			if(parts.length == 2) {
+				form.put(URLDecoder.decode(parts[0], "UTF-8"), URLDecoder.decode(parts[1], "UTF-8"));
+			}
+		}
+		return form;
+	}
+
+	private static void sleep(long millis) {
+		if(millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static byte[] read(File file) throws IOException {
+		return read(new FileInputStream(file));
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/****************************
+	 * MAIN
+	 ****************************/
+
+	public static void main(String[] args) throws Exception {
+		File fixtures = new File(args.length > 0 ? args[0] : "benchmark/fixtures");
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+		Config config = new Config();
+		for(int i = 2; i < args.length; i++) {
+			config.set(args[i]);
+		}
+		StandInServer server = new StandInServer(fixtures, port, config);
+		server.start();
+		System.out.println("Login page: " + server.getLoginPageUrl());
+		System.out.println("Probe:      " + server.getProbeUrl());
+	}
+
+}
@@ -0,0 +1,61 @@
+#!/bin/sh
+# Measures the startup time of the app on a connected device or emulator:
+# cold starts (the process is killed first) and warm starts (the process
+# lives on, the activity is recreated). Reports the time to the first frame
+# as measured by the activity manager (TotalTime of am start -W) and, if a
+# budget is given, fails when the median cold start exceeds it.
+#
+# Usage: benchmark/startup.sh [runs=10] [cold budget in ms]
+# The app must be installed. Set ADB to use another adb binary.
+
+ADB=${ADB:-adb}
+RUNS=${1:-10}
+BUDGET=$2
+PACKAGE=be.maartendecat.kotnetlogin
+COMPONENT=$PACKAGE/.KotnetLoginActivity
+
+# starts the activity and prints its TotalTime in milliseconds
+start() {
+	$ADB shell am start -W -n $COMPONENT | tr -d '\r' | sed -n 's/^TotalTime: *//p'
+}
+
+# prints the median of the numbers on stdin
+median() {
+	sort -n | awk '{ v[NR] = $1 } END { if(NR == 0) exit 1; print (NR % 2) ? v[(NR + 1) / 2] : int((v[NR / 2] + v[NR / 2 + 1]) / 2) }'
+}
+
+# prints the minimum, median and maximum of the numbers in the given file
+report() {
+	echo "$1: min $(sort -n "$2" | head -n 1) ms, median $(median < "$2") ms, max $(sort -n "$2" | tail -n 1) ms ($(wc -l < "$2" | tr -d ' ') runs)"
+}
+
+$ADB get-state > /dev/null 2>&1 || { echo "No device connected" >&2; exit 1; }
+
+COLD=$(mktemp) && WARM=$(mktemp) || exit 1
+trap 'rm -f "$COLD" "$WARM"' EXIT
+
+i=0
+while [ $i -lt "$RUNS" ]; do
+	$ADB shell am force-stop $PACKAGE
+	sleep 1
+	start >> "$COLD"
+	sleep 1
+	# leave the activity without killing the process, then come back
+	$ADB shell input keyevent KEYCODE_BACK
+	sleep 1
+	start >> "$WARM"
+	sleep 1
+	i=$((i + 1))
+done
+
+report "Cold start" "$COLD"
+report "Warm start" "$WARM"
+echo "The app logs its own time to the first frame: adb logcat -s KotnetLoginActivity"
+
+if [ -n "$BUDGET" ]; then
+	MEDIAN=$(median < "$COLD") || exit 1
+	if [ "$MEDIAN" -gt "$BUDGET" ]; then
+		echo "Cold start over budget: $MEDIAN ms > $BUDGET ms" >&2
+		exit 1
+	fi
+fi
@@ -0,0 +1,24 @@
+#!/bin/sh
+# Builds the login daemon (KotnetDaemon) for a plain JVM: the login core of
+# the app (all of its classes that do not depend on Android) and the daemon,
+# in daemon/out/kotnetd.jar, next to a copy of the Jsoup jar it runs with.
+#
+# Usage: daemon/build.sh
+# Set JSOUP_JAR to the Jsoup jar the app is built with.
+
+cd "$(dirname "$0")/.." || exit 1
+JSOUP_JAR=${JSOUP_JAR:-libs/jsoup.jar}
+OUT=daemon/out
+APP=src/be/maartendecat/kotnetlogin
+
+# the login core: all classes of the app that do not depend on Android
+CORE=$(grep -L '^import android' $APP/*.java)
+
+rm -rf "$OUT" && mkdir -p "$OUT/classes" || exit 1
+javac -nowarn -d "$OUT/classes" -cp "$JSOUP_JAR" \
+	$CORE daemon/src/be/maartendecat/kotnetlogin/daemon/*.java || exit 1
+printf 'Main-Class: be.maartendecat.kotnetlogin.daemon.KotnetDaemon\nClass-Path: jsoup.jar\n' > "$OUT/manifest.txt"
+jar cfm "$OUT/kotnetd.jar" "$OUT/manifest.txt" -C "$OUT/classes" . || exit 1
+cp "$JSOUP_JAR" "$OUT/jsoup.jar" || exit 1
+rm -rf "$OUT/classes" "$OUT/manifest.txt"
+echo "Built $OUT/kotnetd.jar"
@@ -0,0 +1,374 @@
+package be.maartendecat.kotnetlogin.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import be.maartendecat.kotnetlogin.ConnectivityProbe;
+import be.maartendecat.kotnetlogin.InstitutionProfile;
+import be.maartendecat.kotnetlogin.JvmPlatform;
+import be.maartendecat.kotnetlogin.Logger;
+import be.maartendecat.kotnetlogin.LoginManager;
+import be.maartendecat.kotnetlogin.LoginManager.LoginProcedureListener;
+import be.maartendecat.kotnetlogin.LoginSession;
+import be.maartendecat.kotnetlogin.Platform;
+
+/**
+ * Keeps a machine without Android (a lab PC, a Raspberry Pi, a router)
+ * logged in, with the login core of the app: every check_interval, the
+ * connection is probed and the login procedure runs when the machine is
+ * held back by netlogin.
+ *
+ * Usage: KotnetDaemon [--once] [--verbose] [config file]
+ * with a properties file with the following keys:
+ * <ul>
+ * <li>username: the account (required)</li>
+ * <li>password, or password_file: the password, or a file with the password
+ * on its first line (one of both required)</li>
+ * <li>profile: the institution profile, a properties file as in the app
+ * (default: KU Leuven)</li>
+ * <li>login_page_url: overrides the login page of the profile, e.g. for a
+ * stand-in of netlogin</li>
+ * <li>probe_url: the URL that answers "204 No Content" when online (default:
+ * the one of the app), "none" to log in on every check</li>
+ * <li>check_interval: the seconds between two checks (default: 60)</li>
+ * <li>renew_interval: the minutes after which the session is renewed, even
+ * when online (default: 0, never)</li>
+ * <li>events_file: where the event log (see {@link Logger}) is written when
+ * the daemon stops (default: none)</li>
+ * </ul>
+ *
+ * With --once, the daemon logs in (if needed) once and exits: with 0 when
+ * online, 1 when netlogin refused the login and 2 on an error. Otherwise it
+ * only stops when netlogin refuses the login, so a wrong password does not
+ * get the account locked.
+ *
+ * @author maartend
+ *
+ */
+public class KotnetDaemon {
+
+	private static final String TAG = "KotnetDaemon";
+
+	private static final String DEFAULT_CONFIG = "/etc/kotnetd.properties";
+
+	/**
+	 * How long a procedure is waited for, longer than its own time budget
+	 * (in milliseconds).
+	 */
+	private static final long PROCEDURE_WAIT = 60 * 1000;
+
+	public static final int EXIT_ONLINE = 0;
+	public static final int EXIT_REFUSED = 1;
+	public static final int EXIT_ERROR = 2;
+
+	/****************************
+	 * MAIN
+	 ****************************/
+
+	public static void main(String[] args) throws Exception {
+		// the daemon has the JVM to itself: allow the Host header, so plain
+		// HTTP requests to the login host go through the DNS cache (see
+		// HttpClient)
+		System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
+		boolean once = false;
+		boolean verbose = false;
+		String configFile = DEFAULT_CONFIG;
+		for(String arg: args) {
+			if(arg.equals("--once")) {
+				once = true;
+			} else if(arg.equals("--verbose")) {
+				verbose = true;
+			} else {
+				configFile = arg;
+			}
+		}
+
+		Platform.initialize(new JvmPlatform(System.err, verbose));
+		KotnetDaemon daemon;
+		try {
+			daemon = new KotnetDaemon(load(new File(configFile)));
+		} catch (IOException e) {
+			System.err.println("Could not read the configuration: " + e.getMessage());
+			System.exit(EXIT_ERROR);
+			return;
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid configuration: " + e.getMessage());
+			System.exit(EXIT_ERROR);
+			return;
+		}
+		System.exit(once ? daemon.check() : daemon.run());
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final String username;
+	private final String password;
+	private final long checkInterval;
+	private final long renewInterval;
+
+	private final LoginManager manager;
+	private final LoginSession session;
+
+	/**
+	 * The outcomes of the procedures, handed from the main loop to the thread
+	 * running the daemon.
+	 */
+	private final BlockingQueue<Integer> outcomes = new LinkedBlockingQueue<Integer>();
+
+	/**
+	 * Must be referenced for as long as the daemon runs: the session holds
+	 * its listeners weakly.
+	 */
+	private final LoginProcedureListener listener = new LoginProcedureListener() {
+
+		public void onLoginProcedureStarted(String username) {
+			Platform.getInstance().info(TAG, "Checking the connection of " + username);
+		}
+
+		public void onNewStageReached(String description) {
+			Platform.getInstance().info(TAG, description);
+		}
+
+		public void onProcedureSuccess() {
+			outcomes.add(EXIT_ONLINE);
+		}
+
+		public void onProcedureFailure(String description) {
+			report("Login refused: " + description);
+			outcomes.add(EXIT_REFUSED);
+		}
+
+		public void onProcedureError(String description) {
+			report("Login error: " + description);
+			outcomes.add(EXIT_ERROR);
+		}
+	};
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	/**
+	 * @throws IllegalArgumentException	When the configuration is not valid.
+	 */
+	private KotnetDaemon(Properties config) throws IOException {
+		this.username = required(config, "username");
+		this.password = readPassword(config);
+		this.checkInterval = Long.parseLong(config.getProperty("check_interval", "60").trim()) * 1000;
+		this.renewInterval = Long.parseLong(config.getProperty("renew_interval", "0").trim()) * 60 * 1000;
+		if(checkInterval <= 0 || renewInterval < 0) {
+			throw new IllegalArgumentException("Intervals must be positive");
+		}
+
+		final InstitutionProfile profile = config.containsKey("profile")
+				? loadProfile(new File(config.getProperty("profile").trim()))
+				: InstitutionProfile.KU_LEUVEN;
+		final String loginPageUrl = config.getProperty("login_page_url");
+		final String probeUrl = config.getProperty("probe_url", ConnectivityProbe.DEFAULT_PROBE_URL).trim();
+		final String eventsFile = config.getProperty("events_file");
+
+		// the manager is only used from the main loop
+		this.manager = LoginManager.getInstance();
+		this.session = manager.getDefaultSession();
+		onMainThread(new Runnable() {
+			public void run() {
+				manager.setProfile(profile);
+				if(loginPageUrl != null) {
+					manager.setLoginPageUrl(loginPageUrl.trim());
+				}
+				manager.setProbeUrl(probeUrl.equals("none") ? null : probeUrl);
+				session.registerLoginProcedureListener(listener);
+			}
+		});
+		if(eventsFile != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					exportEvents(new File(eventsFile.trim()));
+				}
+			});
+		}
+	}
+
+	/****************************
+	 * CHECKS
+	 ****************************/
+
+	/**
+	 * Checks the connection every check_interval, until netlogin refuses the
+	 * login. Returns the exit status.
+	 */
+	private int run() throws InterruptedException {
+		report("Keeping " + username + " logged in");
+		int last = -1;
+		while(true) {
+			int outcome = check();
+			if(outcome == EXIT_REFUSED) {
+				return outcome;
+			}
+			if(outcome == EXIT_ERROR && last != EXIT_ERROR) {
+				report("Retrying every " + (checkInterval / 1000) + "s");
+			}
+			last = outcome;
+			Thread.sleep(checkInterval);
+		}
+	}
+
+	/**
+	 * Logs in if needed (or renews the session if it is due) and waits for
+	 * the outcome. Returns the exit status.
+	 */
+	private int check() throws InterruptedException {
+		final long lastLoginTime = getLastLoginTime();
+		final boolean renew = renewInterval > 0 && lastLoginTime > 0
+				&& System.currentTimeMillis() - lastLoginTime >= renewInterval;
+		outcomes.clear();
+		onMainThread(new Runnable() {
+			public void run() {
+				if(renew) {
+					session.renew(username, password);
+				} else {
+					session.start(username, password);
+				}
+			}
+		});
+		Integer outcome = outcomes.poll(PROCEDURE_WAIT, TimeUnit.MILLISECONDS);
+		if(outcome == null) {
+			report("Login error: no answer");
+			onMainThread(new Runnable() {
+				public void run() {
+					session.cancel();
+				}
+			});
+			return EXIT_ERROR;
+		}
+		if(outcome == EXIT_ONLINE && getLastLoginTime() != lastLoginTime) {
+			report((renew ? "Renewed the session of " : "Logged in as ") + username);
+		}
+		return outcome;
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	private long getLastLoginTime() throws InterruptedException {
+		final long[] result = new long[1];
+		onMainThread(new Runnable() {
+			public void run() {
+				result[0] = session.getLastLoginTime();
+			}
+		});
+		return result[0];
+	}
+
+	/**
+	 * Runs the given task on the main loop and waits for it.
+	 */
+	private static void onMainThread(final Runnable task) {
+		final BlockingQueue<Boolean> done = new LinkedBlockingQueue<Boolean>();
+		Platform.getInstance().runOnMainThread(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					done.add(Boolean.TRUE);
+				}
+			}
+		});
+		boolean interrupted = false;
+		while(true) {
+			try {
+				done.take();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void report(String message) {
+		System.out.println(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " " + message);
+	}
+
+	private static void exportEvents(File file) {
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				Logger.getInstance().writeTo(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write the event log: " + e.getMessage());
+		}
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	private static InstitutionProfile loadProfile(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return InstitutionProfile.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the password from the configuration or from the password file,
+	 * so the configuration itself can be readable by others.
+	 */
+	private static String readPassword(Properties config) throws IOException {
+		if(config.containsKey("password")) {
+			return config.getProperty("password");
+		}
+		BufferedReader in = new BufferedReader(new FileReader(required(config, "password_file")));
+		try {
+			String password = in.readLine();
+			if(password == null) {
+				throw new IllegalArgumentException("Empty password_file");
+			}
+			return password;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String required(Properties config, String key) {
+		String value = config.getProperty(key);
+		if(value == null || value.trim().length() == 0) {
+			throw new IllegalArgumentException("Missing " + key);
+		}
+		return value.trim();
+	}
+
+}
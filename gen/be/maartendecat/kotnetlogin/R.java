@@ -17,11 +17,17 @@ public final class R {
     }
     public static final class id {
         public static final int imageView1=0x7f070001;
+        public static final int importProfile=0x7f070007;
         public static final int preferences=0x7f070002;
+        public static final int sendEventLog=0x7f070006;
         public static final int wholeScreen=0x7f070000;
+        public static final int widget=0x7f070003;
+        public static final int widgetIcon=0x7f070004;
+        public static final int widgetStatus=0x7f070005;
     }
     public static final class layout {
         public static final int main=0x7f030000;
+        public static final int widget=0x7f030001;
     }
     public static final class menu {
         public static final int mainmenu=0x7f060000;
@@ -31,5 +37,6 @@ public final class R {
     }
     public static final class xml {
         public static final int preferences=0x7f040000;
+        public static final int widget_info=0x7f040001;
     }
 }
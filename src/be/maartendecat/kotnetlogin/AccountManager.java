@@ -1,7 +1,10 @@
 package be.maartendecat.kotnetlogin;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -9,155 +12,326 @@ import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.preference.PreferenceManager;
 
-
+/**
+ * Keeps the account details of the user: the username and the password.
+ *
+ * The details are loaded from the preferences once, in the background, and
+ * served from memory afterwards. Reads before the load finished wait for it;
+ * use {@link #whenLoaded(Runnable)} to avoid that on the main thread. Changes
+ * are written back in batches, in the background, and listeners are only
+ * notified when a value really changed.
+ *
+ * @author maartend
+ *
+ */
 public class AccountManager implements OnSharedPreferenceChangeListener {
-	
+
+	private static final String USERNAME = "username";
+	private static final String PASSWORD = "password";
+
+	/**
+	 * How long changes are collected before they are written (in milliseconds).
+	 */
+	private static final long WRITE_DELAY = 500;
+
 	/************************************
 	 * STATIC SINGLETON STUFF
 	 ************************************/
-	
+
 	private static AccountManager instance;
-	
+
 	public static AccountManager getInstance() {
 		if(instance == null) {
 			throw new NullPointerException("initialize before requesting an instance!");
 		}
 		return instance;
 	}
-	
+
 	public static void initialize(Context ctx) {
 		if(instance == null) {
-			instance = new AccountManager(ctx);
+			instance = new AccountManager(ctx.getApplicationContext());
 		}
 	}
-	
+
 	/************************************
 	 * LISTENERS
 	 ************************************/
-	
+
 	public interface AccountDataListener {
-		
+
 		/**
 		 * Called when the username is updated.
 		 */
 		public void onUsernameUpdated(String username);
-		
+
 		/**
-		 * Called when the password is updated.
+		 * Called when the password is updated, with the current username.
 		 */
 		public void onPasswordUpdated(String username);
-		
+
 	}
-	
-	private List<AccountDataListener> listeners = new ArrayList<AccountDataListener>();
-	
+
+	private ListenerRegistry<AccountDataListener> listeners = new ListenerRegistry<AccountDataListener>();
+
 	/**
-	 * Register a listener.
+	 * Register a listener. The listener is held weakly, see
+	 * {@link ListenerRegistry}.
 	 */
 	public void registerAccountDataListener(AccountDataListener listener) {
-		this.listeners.add(listener);
+		this.listeners.register(listener);
 	}
-	
+
 	/**
 	 * Unregister a listener. Nothing is changed if the listener was not registered
 	 * in the first place.
 	 */
 	public void unregisterAccountDataListener(AccountDataListener listener) {
-		this.listeners.remove(listener);
-	}	
-	
+		this.listeners.unregister(listener);
+	}
+
 	/************************************
 	 * CONSTRUCTOR
 	 ************************************/
-	
-	private AccountManager(Context ctx) {
-		prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-		prefs.registerOnSharedPreferenceChangeListener(this);
+
+	private AccountManager(final Context ctx) {
+		Runnable load = new Runnable() {
+			public void run() {
+				load(ctx);
+			}
+		};
+		FetchEngine.getInstance().runOnDiskThread(load);
 	}
-	
+
 	/************************************
 	 * INSTANCE FIELDS
 	 ************************************/
-	
-	private final SharedPreferences prefs;
-	
+
+	private SharedPreferences prefs;
+
+	/**
+	 * The account details in memory, valid once loaded.
+	 */
+	private volatile String username;
+	private volatile String password;
+
+	private final CountDownLatch loaded = new CountDownLatch(1);
+	private List<Runnable> whenLoaded = new ArrayList<Runnable>();
+
+	/**
+	 * The changes that were not written yet (null values are removed).
+	 */
+	private final Map<String, String> pendingWrites = new LinkedHashMap<String, String>();
+
+	/************************************
+	 * LOADING
+	 ************************************/
+
+	/**
+	 * Runs the given task on the main thread once the account details are
+	 * loaded: right away if they are.
+	 */
+	public void whenLoaded(Runnable task) {
+		synchronized(this) {
+			if(whenLoaded != null) {
+				whenLoaded.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * Returns whether the account details are loaded, so reading them does
+	 * not block.
+	 */
+	public boolean isLoaded() {
+		return loaded.getCount() == 0;
+	}
+
 	/************************************
 	 * USERNAME
 	 ************************************/
-	
+
 	/**
-	 * Sets the username to the given value and notifies the listeners.
+	 * Sets the username to the given value and notifies the listeners, if it
+	 * changed.
 	 */
-	private void setUsername(String username) {
-		Editor edit = prefs.edit();
-		edit.putString("username", username);
-		edit.commit();
-		// notify listeners
-		for(AccountDataListener listener: this.listeners) {
-			listener.onUsernameUpdated(username);
+	public void setUsername(String username) {
+		awaitLoaded();
+		if(equal(this.username, username)) {
+			return;
 		}
+		this.username = username;
+		write(USERNAME, username);
+		notifyUsernameUpdated();
 	}
 
 	/**
 	 * Returns the user's username. Null if he has not set it yet.
 	 */
 	public String getUsername() {
-		return prefs.getString("username", null);
+		awaitLoaded();
+		return username;
 	}
 
 	/**
 	 * 	Returns whether the user has set his username.
 	 */
 	public boolean isUsernameSet() {
-		return prefs.contains("username");
+		return getUsername() != null;
 	}
-	
+
 	/************************************
 	 * 	PASSWORD
 	 ************************************/
-	
+
 	/**
-	 * Sets the password to the given value and notifies the listeners.
+	 * Sets the password to the given value and notifies the listeners, if it
+	 * changed.
 	 */
-	private void setPassword(String password) {
-		Editor edit = prefs.edit();
-		prefs.edit().putString("password", password);
-		edit.commit();
-		// notify listeners
-		for(AccountDataListener listener: this.listeners) {
-			listener.onPasswordUpdated(password);
+	public void setPassword(String password) {
+		awaitLoaded();
+		if(equal(this.password, password)) {
+			return;
 		}
+		this.password = password;
+		write(PASSWORD, password);
+		notifyPasswordUpdated();
 	}
-	
+
 	/**
 	 * Returns the user's password. Null if he has not set it yet.
 	 */
 	public String getPassword() {
-		return prefs.getString("password", null);
+		awaitLoaded();
+		return password;
 	}
-	
+
 	/**
 	 * Returns whether the user has set his password.
 	 */
 	public boolean isPasswordSet() {
-		return prefs.contains("password");
+		return getPassword() != null;
 	}
-	
+
 	/************************************
 	 * SHARED PREFERENCE LISTENER METHODS
 	 ************************************/
 
 	/**
-	 * Called when a shared preference is changed. For us, the only preferences
-	 * are username and password.
+	 * Called when a shared preference is changed, e.g. in the preferences
+	 * screen or by our own writes. For us, the only preferences are username
+	 * and password.
 	 */
 	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
 			String key) {
-		if(key.equals("username")) {
-			setUsername(sharedPreferences.getString(key, null));
-		} else if(key.equals("password")) {
-			setPassword(sharedPreferences.getString(key, null));
+		if(!USERNAME.equals(key) && !PASSWORD.equals(key)) {
+			return;
+		}
+		String value = sharedPreferences.getString(key, null);
+		synchronized(pendingWrites) {
+			if(pendingWrites.containsKey(key)) {
+				// our own change is still on its way
+				return;
+			}
+		}
+		if(USERNAME.equals(key) && !equal(username, value)) {
+			username = value;
+			notifyUsernameUpdated();
+		} else if(PASSWORD.equals(key) && !equal(password, value)) {
+			password = value;
+			notifyPasswordUpdated();
+		}
+	}
+
+	/************************************
+	 * HELPER METHODS
+	 ************************************/
+
+	private void load(Context ctx) {
+		prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+		username = prefs.getString(USERNAME, null);
+		password = prefs.getString(PASSWORD, null);
+		prefs.registerOnSharedPreferenceChangeListener(this);
+		loaded.countDown();
+		FetchEngine.getInstance().runOnMainThread(new Runnable() {
+			public void run() {
+				List<Runnable> tasks;
+				synchronized(AccountManager.this) {
+					tasks = whenLoaded;
+					whenLoaded = null;
+				}
+				for(Runnable task: tasks) {
+					task.run();
+				}
+			}
+		});
+	}
+
+	private void awaitLoaded() {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				loaded.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	/**
+	 * Queues the given change. All changes queued within WRITE_DELAY are
+	 * written together.
+	 */
+	private void write(String key, String value) {
+		synchronized(pendingWrites) {
+			boolean scheduled = !pendingWrites.isEmpty();
+			pendingWrites.put(key, value);
+			if(scheduled) {
+				return;
+			}
+		}
+		FetchEngine.getInstance().schedule(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, WRITE_DELAY);
+	}
+
+	private void flush() {
+		synchronized(pendingWrites) {
+			Editor edit = prefs.edit();
+			for(Map.Entry<String, String> change: pendingWrites.entrySet()) {
+				if(change.getValue() == null) {
+					edit.remove(change.getKey());
+				} else {
+					edit.putString(change.getKey(), change.getValue());
+				}
+			}
+			pendingWrites.clear();
+			// writes to disk in the background
+			edit.apply();
+		}
+	}
+
+	private void notifyUsernameUpdated() {
+		for(AccountDataListener listener: this.listeners) {
+			listener.onUsernameUpdated(username);
+		}
+	}
+
+	private void notifyPasswordUpdated() {
+		for(AccountDataListener listener: this.listeners) {
+			listener.onPasswordUpdated(username);
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
 }
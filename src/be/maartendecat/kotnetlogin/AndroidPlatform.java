@@ -0,0 +1,43 @@
+package be.maartendecat.kotnetlogin;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The platform of the app: the UI thread, SystemClock and logcat.
+ *
+ * @author maartend
+ *
+ */
+public class AndroidPlatform extends Platform {
+
+	private final Handler mainThread = new Handler(Looper.getMainLooper());
+
+	@Override
+	public void runOnMainThread(Runnable task) {
+		mainThread.post(task);
+	}
+
+	@Override
+	public long elapsedRealtime() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	@Override
+	public void info(String tag, String message) {
+		Log.i(tag, message);
+	}
+
+	@Override
+	public void warn(String tag, String message) {
+		Log.w(tag, message);
+	}
+
+	@Override
+	public void error(String tag, String message) {
+		Log.e(tag, message);
+	}
+
+}
@@ -0,0 +1,163 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Base class for the fetches of the app. A fetch runs on the
+ * {@link FetchEngine} and reports its outcome exactly once on the main thread,
+ * unless it is cancelled: then it does not report at all.
+ *
+ * A fetch that does not finish before its deadline is cancelled and fails
+ * with a {@link DeadlineExceededException}.
+ *
+ * @author maartend
+ *
+ */
+public abstract class AsyncFetch<Param, Result> {
+
+	private final AtomicBoolean finished = new AtomicBoolean(false);
+	private volatile boolean cancelled = false;
+	private volatile Future<?> future;
+	private volatile ScheduledFuture<?> watchdog;
+
+	/****************************
+	 * EXECUTION
+	 ****************************/
+
+	/**
+	 * Starts the fetch without a deadline.
+	 */
+	public final AsyncFetch<Param, Result> execute(Param param) {
+		return execute(param, Deadline.NONE);
+	}
+
+	/**
+	 * Starts the fetch. The fetch fails if it did not finish by the given
+	 * deadline.
+	 */
+	public final AsyncFetch<Param, Result> execute(Param param, Deadline deadline) {
+		return execute(param, deadline, null);
+	}
+
+	/**
+	 * Starts the fetch. The fetch fails if it did not finish by the given
+	 * deadline. The stages of the fetch are recorded into the given timings,
+	 * if not null.
+	 */
+	public final AsyncFetch<Param, Result> execute(final Param param, final Deadline deadline, final StageTimings timings) {
+		FetchEngine engine = FetchEngine.getInstance();
+		try {
+			future = engine.submit(new Runnable() {
+				public void run() {
+					StageTimings.setCurrent(timings);
+					try {
+						deliver(doInBackground(param, deadline), null);
+					} catch (Exception e) {
+						deliver(null, e);
+					} finally {
+						StageTimings.setCurrent(null);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			deliver(null, new IOException("Too many fetches in progress"));
+			return this;
+		}
+		if(deadline != Deadline.NONE) {
+			watchdog = engine.schedule(new Runnable() {
+				public void run() {
+					if(deliver(null, new DeadlineExceededException())) {
+						future.cancel(true);
+					}
+				}
+			}, deadline.remainingMillis());
+		}
+		return this;
+	}
+
+	/**
+	 * Cancels the fetch. The fetch will not report its outcome, even if it 
+	 * already finished but the outcome was not reported yet.
+	 */
+	public final void cancel() {
+		cancelled = true;
+		finished.set(true);
+		if(future != null) {
+			future.cancel(true);
+		}
+		if(watchdog != null) {
+			watchdog.cancel(false);
+		}
+	}
+
+	/**
+	 * Returns whether the fetch finished or was cancelled.
+	 */
+	public final boolean isFinished() {
+		return finished.get();
+	}
+
+	/****************************
+	 * TO IMPLEMENT
+	 ****************************/
+
+	/**
+	 * Performs the fetch (in a separate thread).
+	 */
+	protected abstract Result doInBackground(Param param, Deadline deadline) throws Exception;
+
+	/**
+	 * Called when the fetch finished successfully (in the main/UI thread).
+	 */
+	protected abstract void onSuccess(Result result);
+
+	/**
+	 * Called when the fetch failed (in the main/UI thread).
+	 */
+	protected abstract void onFailure(Exception e);
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Reports the outcome of the fetch on the main thread, unless an outcome
+	 * was already reported. Returns whether this outcome will be reported.
+	 */
+	private boolean deliver(final Result result, final Exception e) {
+		if(!finished.compareAndSet(false, true)) {
+			return false;
+		}
+		if(watchdog != null) {
+			watchdog.cancel(false);
+		}
+		FetchEngine.getInstance().runOnMainThread(new Runnable() {
+			public void run() {
+				if(cancelled) {
+					return;
+				}
+				if(e == null) {
+					onSuccess(result);
+				} else {
+					onFailure(e);
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Returns the given exception as an IOException, wrapping it if needed.
+	 */
+	protected static IOException asIOException(Exception e) {
+		if(e instanceof IOException) {
+			return (IOException) e;
+		}
+		return new IOException(e.toString(), e);
+	}
+
+}
@@ -2,20 +2,18 @@ package be.maartendecat.kotnetlogin;
 
 import java.io.IOException;
 
-import org.jsoup.Connection;
+import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
-import android.os.AsyncTask;
-
 /**
+ * Fetches a page through an {@link HttpClient} and parses it with Jsoup.
  * 
  * @author maartend
  *
  */
-public class AsyncJSoupFetch extends AsyncTask<Connection, Long, Boolean> {
+public class AsyncJSoupFetch extends AsyncFetch<HttpRequest, Document> {
 	
-	private Document result;
-	private IOException exception;
+	private HttpClient client;
 	private Type type;
 
 	/****************************
@@ -38,7 +36,8 @@ public class AsyncJSoupFetch extends AsyncTask<Connection, Long, Boolean> {
 		public void onSuccess(Document result);
 		
 		/**
-		 * Called on IOException.
+		 * Called on IOException, including a {@link DeadlineExceededException}
+		 * when the fetch timed out.
 		 */
 		public void onIOException(IOException e);
 		
@@ -49,7 +48,8 @@ public class AsyncJSoupFetch extends AsyncTask<Connection, Long, Boolean> {
 	 * CONSTRUCTOR
 	 ****************************/
 	
-	public AsyncJSoupFetch(Type type, AsyncJSoupFetchCallback callback) {
+	public AsyncJSoupFetch(HttpClient client, Type type, AsyncJSoupFetchCallback callback) {
+		this.client = client;
 		this.type = type;
 		this.callback = callback;
 	}
@@ -57,20 +57,20 @@ public class AsyncJSoupFetch extends AsyncTask<Connection, Long, Boolean> {
 	@Override
 	/**
 	 * Called when the fetch is started (in a separate thread).
-	 * Only the first connection will be executed!
 	 */
-	protected Boolean doInBackground(Connection... connections) {
-		Connection connection = connections[0];
+	protected Document doInBackground(HttpRequest request, Deadline deadline) throws IOException {
+		HttpResponse response = null;
 		try {
 			if(type == Type.GET) {
-				result = connection.get();
+				response = client.get(request, deadline);
 			} else {
-				result = connection.post();
+				response = client.post(request, deadline);
+			}
+			return Jsoup.parse(response.getInputStream(), response.getCharset(), response.getUrl().toExternalForm());
+		} finally {
+			if(response != null) {
+				response.close();
 			}
-			return true;
-		} catch( IOException e) {
-			exception = e;
-			return false;
 		}
 	}
 	
@@ -78,12 +78,16 @@ public class AsyncJSoupFetch extends AsyncTask<Connection, Long, Boolean> {
 	/**
 	 * Called when the fetch finished successfully (in the original/UI thread).
 	 */
-	protected void onPostExecute(Boolean success) {
-		if(success) {
-			callback.onSuccess(result);
-		} else {
-			callback.onIOException(exception);
-		}
+	protected void onSuccess(Document result) {
+		callback.onSuccess(result);
+	}
+	
+	@Override
+	/**
+	 * Called when the fetch failed (in the original/UI thread).
+	 */
+	protected void onFailure(Exception e) {
+		callback.onIOException(asIOException(e));
 	}
 
 }
@@ -0,0 +1,202 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.Callable;
+
+import org.jsoup.Jsoup;
+
+import be.maartendecat.kotnetlogin.StageTimings.Stage;
+
+/**
+ * Fetches the login page and extracts the login form while the page is being
+ * downloaded. Falls back to a full Jsoup parse when the streaming extractor
+ * cannot find the form.
+ *
+ * @author maartend
+ *
+ */
+public class AsyncLoginFormFetch extends AsyncFetch<HttpRequest, LoginForm> {
+
+	private HttpClient client;
+	private RetryPolicy retryPolicy = RetryPolicy.NONE;
+	private long hedgeDelay = -1;
+
+	/****************************
+	 * CALLBACK
+	 ****************************/
+
+	public interface AsyncLoginFormFetchCallback {
+
+		/**
+		 * Called on success.
+		 */
+		public void onSuccess(LoginForm result);
+
+		/**
+		 * Called when the page was fetched, but does not contain a usable
+		 * login form.
+		 */
+		public void onLoginFormException(LoginFormException e);
+
+		/**
+		 * Called on IOException, including a {@link DeadlineExceededException}
+		 * when the fetch timed out.
+		 */
+		public void onIOException(IOException e);
+
+	}
+	private AsyncLoginFormFetchCallback callback;
+	private final ExtractionPlan plan;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public AsyncLoginFormFetch(HttpClient client, ExtractionPlan plan, AsyncLoginFormFetchCallback callback) {
+		this.client = client;
+		this.plan = plan;
+		this.callback = callback;
+	}
+
+	/****************************
+	 * SETTINGS
+	 ****************************/
+
+	/**
+	 * Sets the policy for retrying failed fetches. Call before executing.
+	 */
+	public AsyncLoginFormFetch setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	/**
+	 * Sets the time after which a second fetch of the page is started in
+	 * parallel (in milliseconds), -1 to never do so. Call before executing.
+	 */
+	public AsyncLoginFormFetch setHedgeDelay(long hedgeDelay) {
+		this.hedgeDelay = hedgeDelay;
+		return this;
+	}
+
+	@Override
+	/**
+	 * Called when the fetch is started (in a separate thread).
+	 */
+	protected LoginForm doInBackground(final HttpRequest request, final Deadline deadline) throws Exception {
+		return retryPolicy.call(new RetryPolicy.Attempt<LoginForm>() {
+			public LoginForm call(Deadline attemptDeadline) throws Exception {
+				return (hedgeDelay < 0) ? fetch(client, plan, request, attemptDeadline) : fetchHedged(request, attemptDeadline);
+			}
+		}, true, deadline);
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Fetches the page with the given client and extracts the form.
+	 */
+	private static LoginForm fetch(HttpClient client, ExtractionPlan plan, HttpRequest request, Deadline deadline) throws IOException, LoginFormException {
+		HttpResponse response = null;
+		long fetchStart = System.nanoTime();
+		try {
+			response = client.get(request, deadline);
+			String charset = response.getCharset();
+			Reader reader = new InputStreamReader(response.getInputStream(), charset == null ? "UTF-8" : charset);
+			LoginFormExtractor extractor = plan.newExtractor(reader);
+			long start = System.nanoTime();
+			long readBefore = response.getReadNanos();
+			try {
+				LoginForm result = extractor.extract();
+				if(result == null) {
+					// fall back to the DOM
+					result = plan.extractForm(Jsoup.parse(extractor.getConsumedText(), response.getUrl().toExternalForm()));
+				}
+				StageTimings.record(Stage.LOGIN_PAGE, System.nanoTime() - fetchStart);
+				return result;
+			} finally {
+				// parsing is interleaved with the download, leave out the waiting
+				long waited = response.getReadNanos() - readBefore;
+				StageTimings.record(Stage.PARSE, System.nanoTime() - start - waited);
+			}
+		} finally {
+			// the rest of the page is not read, closing the response drains it
+			if(response != null) {
+				response.close();
+			}
+		}
+	}
+
+	/**
+	 * Fetches the page and, if that takes longer than the hedge delay, fetches
+	 * it a second time in parallel. Each fetch has its own copy of the cookies;
+	 * only those of the fetch that wins are kept, since the form belongs to
+	 * the session cookie that came with it.
+	 */
+	private LoginForm fetchHedged(HttpRequest request, Deadline deadline) throws Exception {
+		StageTimings timings = StageTimings.current();
+		Attempt primary = new Attempt(client.fork(), plan, request, deadline);
+		Attempt backup = new Attempt(client.fork(), plan, request, deadline);
+		Attempt winner = HedgedCall.call(primary, backup, hedgeDelay, deadline, FetchEngine.getInstance().getAttemptExecutor());
+		client.adoptCookies(winner.client);
+		if(timings != null) {
+			timings.addAll(winner.timings);
+		}
+		return winner.form;
+	}
+
+	/**
+	 * One of the fetches of a hedged fetch, with its own client and timings.
+	 */
+	private static class Attempt implements Callable<Attempt> {
+
+		private final HttpClient client;
+		private final ExtractionPlan plan;
+		private final HttpRequest request;
+		private final Deadline deadline;
+		private final StageTimings timings = new StageTimings();
+		private LoginForm form;
+
+		Attempt(HttpClient client, ExtractionPlan plan, HttpRequest request, Deadline deadline) {
+			this.client = client;
+			this.plan = plan;
+			this.request = request;
+			this.deadline = deadline;
+		}
+
+		public Attempt call() throws Exception {
+			StageTimings.setCurrent(timings);
+			try {
+				form = fetch(client, plan, request, deadline);
+				return this;
+			} finally {
+				StageTimings.setCurrent(null);
+			}
+		}
+	}
+
+	@Override
+	/**
+	 * Called when the fetch finished successfully (in the original/UI thread).
+	 */
+	protected void onSuccess(LoginForm result) {
+		callback.onSuccess(result);
+	}
+
+	@Override
+	/**
+	 * Called when the fetch failed (in the original/UI thread).
+	 */
+	protected void onFailure(Exception e) {
+		if(e instanceof LoginFormException) {
+			callback.onLoginFormException((LoginFormException) e);
+		} else {
+			callback.onIOException(asIOException(e));
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package be.maartendecat.kotnetlogin;
+
+import be.maartendecat.kotnetlogin.ConnectivityProbe.Status;
+
+/**
+ * Runs a {@link ConnectivityProbe} in the background.
+ *
+ * @author maartend
+ *
+ */
+public class AsyncProbeFetch extends AsyncFetch<ConnectivityProbe, Status> {
+
+	/****************************
+	 * CALLBACK
+	 ****************************/
+
+	public interface AsyncProbeFetchCallback {
+
+		/**
+		 * Called with the outcome of the probe, UNKNOWN if the probe failed or
+		 * timed out.
+		 */
+		public void onProbed(Status status);
+
+	}
+	private AsyncProbeFetchCallback callback;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public AsyncProbeFetch(AsyncProbeFetchCallback callback) {
+		this.callback = callback;
+	}
+
+	@Override
+	/**
+	 * Called when the fetch is started (in a separate thread).
+	 */
+	protected Status doInBackground(ConnectivityProbe probe, Deadline deadline) {
+		return probe.probe(deadline);
+	}
+
+	@Override
+	/**
+	 * Called when the probe finished (in the original/UI thread).
+	 */
+	protected void onSuccess(Status result) {
+		callback.onProbed(result);
+	}
+
+	@Override
+	/**
+	 * Called when the probe timed out (in the original/UI thread).
+	 */
+	protected void onFailure(Exception e) {
+		callback.onProbed(Status.UNKNOWN);
+	}
+
+}
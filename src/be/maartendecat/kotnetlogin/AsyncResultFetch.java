@@ -0,0 +1,108 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+
+import be.maartendecat.kotnetlogin.ResultClassifier.Result;
+import be.maartendecat.kotnetlogin.StageTimings.Stage;
+
+/**
+ * Submits the login form through an {@link HttpClient} and classifies the
+ * result page while it is being downloaded.
+ *
+ * @author maartend
+ *
+ */
+public class AsyncResultFetch extends AsyncFetch<HttpRequest, Result> {
+
+	private HttpClient client;
+	private ResultClassifier classifier;
+	private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+	/****************************
+	 * CALLBACK
+	 ****************************/
+
+	public interface AsyncResultFetchCallback {
+
+		/**
+		 * Called on success, i.e., when the result page was classified.
+		 */
+		public void onSuccess(Result result);
+
+		/**
+		 * Called on IOException, including a {@link DeadlineExceededException}
+		 * when the fetch timed out.
+		 */
+		public void onIOException(IOException e);
+
+	}
+	private AsyncResultFetchCallback callback;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public AsyncResultFetch(HttpClient client, ResultClassifier classifier, AsyncResultFetchCallback callback) {
+		this.client = client;
+		this.classifier = classifier;
+		this.callback = callback;
+	}
+
+	/**
+	 * Sets the policy for retrying failed submits. A submit is only retried
+	 * if the form was not sent. Call before executing.
+	 */
+	public AsyncResultFetch setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	@Override
+	/**
+	 * Called when the fetch is started (in a separate thread).
+	 */
+	protected Result doInBackground(final HttpRequest request, final Deadline deadline) throws Exception {
+		return retryPolicy.call(new RetryPolicy.Attempt<Result>() {
+			public Result call(Deadline attemptDeadline) throws IOException {
+				return submit(request, attemptDeadline);
+			}
+		}, false, deadline);
+	}
+
+	private Result submit(HttpRequest request, Deadline deadline) throws IOException {
+		HttpResponse response = null;
+		try {
+			response = client.post(request, deadline);
+			long start = System.nanoTime();
+			long readBefore = response.getReadNanos();
+			try {
+				return classifier.classify(response.getInputStream(), response.getCharset());
+			} finally {
+				// classifying is interleaved with the download, leave out the waiting
+				long waited = response.getReadNanos() - readBefore;
+				StageTimings.record(Stage.CLASSIFY, System.nanoTime() - start - waited);
+			}
+		} finally {
+			if(response != null) {
+				response.close();
+			}
+		}
+	}
+
+	@Override
+	/**
+	 * Called when the fetch finished successfully (in the original/UI thread).
+	 */
+	protected void onSuccess(Result result) {
+		callback.onSuccess(result);
+	}
+
+	@Override
+	/**
+	 * Called when the fetch failed (in the original/UI thread).
+	 */
+	protected void onFailure(Exception e) {
+		callback.onIOException(asIOException(e));
+	}
+
+}
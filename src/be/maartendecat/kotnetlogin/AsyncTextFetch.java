@@ -1,98 +1,225 @@
 package be.maartendecat.kotnetlogin;
 
-import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.URL;
-
-import android.os.AsyncTask;
+import java.io.Reader;
+import java.nio.charset.Charset;
 
 /**
- * 
+ * Fetches a page as text, without keeping more of it in memory than needed.
+ *
+ * The body is decoded with the charset from the Content-Type header (UTF-8 if
+ * there is none) and read through a buffer that is reused by all text fetches
+ * of a thread. Responses larger than the maximal body size are aborted with a
+ * {@link BodyTooLargeException}, as soon as the Content-Length or the bytes
+ * read so far exceed it. A {@link ChunkListener} can process the text while
+ * it arrives; the text is not collected then.
+ *
  * @author maartend
  *
  */
-public class AsyncTextFetch extends AsyncTask<URL, Long, Boolean> {
-	
-	private String result;
-	private IOException exception;
+public class AsyncTextFetch extends AsyncFetch<HttpRequest, String> {
+
+	/**
+	 * The maximal body size when none is given, in bytes.
+	 */
+	public static final int DEFAULT_MAX_BODY_SIZE = 256 * 1024;
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[BUFFER_SIZE];
+		}
+	};
+
+	private HttpClient client;
 	private Type type;
+	private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+	private ChunkListener chunkListener = null;
 
 	/****************************
 	 * FETCH TYPE
 	 ****************************/
-	
+
 	public enum Type {
 		GET, POST;
 	}
-	
+
 	/****************************
 	 * CALLBACK
 	 ****************************/
-	
+
 	public interface AsyncTextFetchCallback {
-		
+
 		/**
-		 * Called on success.
+		 * Called on success, with the text of the page. The text is null if
+		 * it was passed to a chunk listener instead.
 		 */
 		public void onSuccess(String result);
-		
+
 		/**
-		 * Called on IOException.
+		 * Called on IOException, including a {@link DeadlineExceededException}
+		 * when the fetch timed out and a {@link BodyTooLargeException} when the
+		 * page was too large.
 		 */
 		public void onIOException(IOException e);
-		
+
 	}
 	private AsyncTextFetchCallback callback;
-	
+
+	/**
+	 * Processes the text of the page while it arrives (in the separate
+	 * thread of the fetch).
+	 */
+	public interface ChunkListener {
+
+		/**
+		 * Called for every piece of text read. The buffer is reused afterwards,
+		 * so it must not be kept. Throwing an IOException aborts the fetch.
+		 */
+		public void onChunk(char[] buffer, int offset, int length) throws IOException;
+
+	}
+
 	/****************************
 	 * CONSTRUCTOR
 	 ****************************/
-	
-	public AsyncTextFetch(Type type, AsyncTextFetchCallback callback) {
+
+	public AsyncTextFetch(HttpClient client, Type type, AsyncTextFetchCallback callback) {
+		this.client = client;
 		this.type = type;
 		this.callback = callback;
 	}
 
+	/****************************
+	 * SETTINGS
+	 ****************************/
+
+	/**
+	 * Sets the maximal size of the body in bytes. Call before executing.
+	 */
+	public AsyncTextFetch setMaxBodySize(int maxBodySize) {
+		this.maxBodySize = maxBodySize;
+		return this;
+	}
+
+	/**
+	 * Passes the text to the given listener while it arrives, instead of
+	 * collecting it. Call before executing.
+	 */
+	public AsyncTextFetch setChunkListener(ChunkListener chunkListener) {
+		this.chunkListener = chunkListener;
+		return this;
+	}
+
 	@Override
 	/**
 	 * Called when the fetch is started (in a separate thread).
-	 * Only the first URL will be fetched!
 	 */
-	protected Boolean doInBackground(URL... urls) {
-		URL url = urls[0];
-		BufferedReader reader = null;
-	    StringBuilder builder = new StringBuilder();
-	    try {
-	        reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
-	        for (String line; (line = reader.readLine()) != null;) {
-	            builder.append(line.trim());
-	        }
-	        result = builder.toString();
-	        try {
-	        	reader.close(); 
-        	} catch (IOException logOrIgnore) {}
-	        return true;
-	    } catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+	protected String doInBackground(HttpRequest request, Deadline deadline) throws IOException {
+		HttpResponse response = null;
+		try {
+			response = (type == Type.POST) ? client.post(request, deadline) : client.get(request, deadline);
+			int contentLength = response.getContentLength();
+			if(contentLength > maxBodySize) {
+				throw new BodyTooLargeException(maxBodySize);
+			}
+			Reader reader = new InputStreamReader(new BoundedInputStream(response.getInputStream(), maxBodySize),
+					charsetOf(response));
+			char[] buffer = buffers.get();
+			StringBuilder text = (chunkListener == null) ? new StringBuilder(contentLength > 0 ? contentLength : BUFFER_SIZE) : null;
+			int read;
+			while((read = reader.read(buffer)) != -1) {
+				if(text != null) {
+					text.append(buffer, 0, read);
+				} else {
+					chunkListener.onChunk(buffer, 0, read);
+				}
+			}
+			return (text == null) ? null : text.toString();
 		} finally {
-	        if (reader != null) try { reader.close(); } catch (IOException logOrIgnore) {}
-	    }
-        return false;
+			if(response != null) {
+				response.close();
+			}
+		}
 	}
-	
+
 	@Override
 	/**
 	 * Called when the fetch finished successfully (in the original/UI thread).
 	 */
-	protected void onPostExecute(Boolean success) {
-		if(success) {
-			callback.onSuccess(result);
-		} else {
-			callback.onIOException(exception);
+	protected void onSuccess(String result) {
+		callback.onSuccess(result);
+	}
+
+	@Override
+	/**
+	 * Called when the fetch failed (in the original/UI thread).
+	 */
+	protected void onFailure(Exception e) {
+		callback.onIOException(asIOException(e));
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Returns the charset of the given response, UTF-8 if it does not specify
+	 * a supported one.
+	 */
+	private static Charset charsetOf(HttpResponse response) {
+		String charset = response.getCharset();
+		try {
+			if(charset != null && Charset.isSupported(charset)) {
+				return Charset.forName(charset);
+			}
+		} catch (IllegalArgumentException e) {
+			// illegal charset name
+		}
+		return Charset.forName("UTF-8");
+	}
+
+	/**
+	 * Input stream that fails when more than a given number of bytes is read.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+
+		private final long limit;
+		private long count = 0;
+
+		BoundedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int result = super.read();
+			if(result != -1) {
+				count(1);
+			}
+			return result;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int result = super.read(buffer, offset, length);
+			if(result > 0) {
+				count(result);
+			}
+			return result;
+		}
+
+		private void count(int read) throws BodyTooLargeException {
+			count += read;
+			if(count > limit) {
+				throw new BodyTooLargeException(limit);
+			}
 		}
 	}
 
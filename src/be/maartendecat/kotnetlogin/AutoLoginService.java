@@ -0,0 +1,186 @@
+package be.maartendecat.kotnetlogin;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+import android.widget.Toast;
+import be.maartendecat.kotnetlogin.LoginManager.LoginProcedureListener;
+
+/**
+ * Logs in automatically when Wi-Fi connects.
+ *
+ * Wi-Fi often connects and disconnects a couple of times when roaming between
+ * access points, so the login only starts once the connection has been up for
+ * DEBOUNCE_DELAY. Triggers that arrive in the meantime restart the wait, and
+ * a trigger while a login is in progress does not start another one: the
+ * running login covers it. On networks other than Kotnet, the connection
+ * probe ends the procedure before the login page is fetched.
+ *
+ * The service also runs the renewals of the {@link SessionRenewalScheduler}
+ * and the logins started from the home screen widget, right away. While it
+ * runs, it shows the progress of the login in the widget (see
+ * {@link LoginWidgetProvider}).
+ *
+ * The service stops itself as soon as the login is done.
+ *
+ * @author maartend
+ *
+ */
+public class AutoLoginService extends Service implements LoginProcedureListener {
+
+	private static final String TAG = "AutoLoginService";
+
+	public static final String ACTION_WIFI_CONNECTED = "be.maartendecat.kotnetlogin.WIFI_CONNECTED";
+	public static final String ACTION_WIFI_DISCONNECTED = "be.maartendecat.kotnetlogin.WIFI_DISCONNECTED";
+	public static final String ACTION_RENEW = "be.maartendecat.kotnetlogin.RENEW";
+	public static final String ACTION_LOGIN = "be.maartendecat.kotnetlogin.LOGIN";
+
+	/**
+	 * How long the connection must be up before logging in (in milliseconds).
+	 */
+	private static final long DEBOUNCE_DELAY = 2 * 1000;
+
+	/************************************
+	 * FIELDS
+	 ************************************/
+
+	private final Handler handler = new Handler();
+
+	private final Runnable login = new Runnable() {
+		public void run() {
+			pending = false;
+			startLogin();
+		}
+	};
+
+	private LoginSession session;
+
+	/**
+	 * Whether a login is scheduled, and whether one is in progress.
+	 */
+	private boolean pending = false;
+	private boolean loggingIn = false;
+
+	/************************************
+	 * SERVICE
+	 ************************************/
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		AccountManager.initialize(getApplicationContext());
+		InstitutionProfiles.initialize(getApplicationContext());
+		SessionRenewalScheduler.initialize(getApplicationContext());
+		session = LoginManager.getInstance().getDefaultSession();
+		session.registerLoginProcedureListener(this);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		String action = (intent == null) ? null : intent.getAction();
+		if(ACTION_RENEW.equals(action)) {
+			SessionRenewalScheduler.getInstance().onAlarm();
+		} else if(ACTION_LOGIN.equals(action)) {
+			// tapped by the user: no need to wait
+			handler.removeCallbacks(login);
+			pending = true;
+			LoginWidgetProvider.showStatus(this, "Starting...");
+			AccountManager.getInstance().whenLoaded(login);
+		} else if(ACTION_WIFI_DISCONNECTED.equals(action)) {
+			// flapping: wait for the next connect
+			handler.removeCallbacks(login);
+			pending = false;
+		} else {
+			// (re)start the wait
+			handler.removeCallbacks(login);
+			handler.postDelayed(login, DEBOUNCE_DELAY);
+			pending = true;
+		}
+		stopIfIdle();
+		return START_NOT_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		handler.removeCallbacks(login);
+		session.unregisterLoginProcedureListener(this);
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	/************************************
+	 * LOGIN
+	 ************************************/
+
+	private void startLogin() {
+		if(session.isRunning()) {
+			// coalesce with the login in progress, e.g. one started by the user
+			Log.i(TAG, "Login already in progress");
+			loggingIn = true;
+			return;
+		}
+		AccountManager am = AccountManager.getInstance();
+		if(!am.isUsernameSet() || !am.isPasswordSet()) {
+			LoginWidgetProvider.showStatus(this, "Set your account details in the app first");
+			stopIfIdle();
+			return;
+		}
+		Log.i(TAG, "Logging in");
+		loggingIn = true;
+		LoginManager.getInstance().startLoginProcedure(am.getUsername(), am.getPassword());
+	}
+
+	/**
+	 * Stops the service if nothing is scheduled or in progress.
+	 */
+	private void stopIfIdle() {
+		if(!pending && !loggingIn) {
+			stopSelf();
+		}
+	}
+
+	private void onLoginDone() {
+		loggingIn = false;
+		stopIfIdle();
+	}
+
+	/************************************
+	 * LOGIN PROCEDURE LISTENER METHODS
+	 ************************************/
+
+	public void onLoginProcedureStarted(String username) {
+		// the user may have started it
+		loggingIn = true;
+		LoginWidgetProvider.showStatus(this, "Logging in as " + username + "...");
+	}
+
+	public void onNewStageReached(String description) {
+		LoginWidgetProvider.showStatus(this, description);
+	}
+
+	public void onProcedureError(String description) {
+		// not on Kotnet, no connection...: not worth bothering the user
+		Log.i(TAG, "Automatic login ended: " + description);
+		LoginWidgetProvider.showStatus(this, "Error: " + description);
+		onLoginDone();
+	}
+
+	public void onProcedureSuccess() {
+		LoginWidgetProvider.showStatus(this, "Logged in");
+		onLoginDone();
+	}
+
+	public void onProcedureFailure(String description) {
+		// most likely wrong credentials, the user should know
+		Toast.makeText(this, "Automatic Kotnet login failed: " + description, Toast.LENGTH_LONG).show();
+		LoginWidgetProvider.showStatus(this, "Login failed: " + description);
+		onLoginDone();
+	}
+
+}
@@ -0,0 +1,29 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the body of a response is larger than the fetch accepts.
+ *
+ * @author maartend
+ *
+ */
+public class BodyTooLargeException extends IOException {
+
+	private static final long serialVersionUID = -2931796104523018655L;
+
+	private final long limit;
+
+	public BodyTooLargeException(long limit) {
+		super("Response body larger than " + limit + " bytes");
+		this.limit = limit;
+	}
+
+	/**
+	 * Returns the maximal body size that was exceeded, in bytes.
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+}
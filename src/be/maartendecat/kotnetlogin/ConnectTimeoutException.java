@@ -0,0 +1,20 @@
+package be.maartendecat.kotnetlogin;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when setting up a connection timed out, as opposed to waiting for
+ * the response. The request was not sent, so it can always be sent again.
+ *
+ * @author maartend
+ *
+ */
+public class ConnectTimeoutException extends SocketTimeoutException {
+
+	private static final long serialVersionUID = 4409132218753650283L;
+
+	public ConnectTimeoutException(String message) {
+		super(message);
+	}
+
+}
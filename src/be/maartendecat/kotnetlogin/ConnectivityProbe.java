@@ -0,0 +1,145 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Finds out with a single small request whether the device is already online,
+ * is being held back by netlogin or is on another network altogether.
+ *
+ * The probe fetches a URL that is known to answer with an empty "204 No
+ * Content" response. Behind netlogin, the request is answered with a redirect
+ * to (or a page pointing to) netlogin instead. Only a redirect to another
+ * host counts as being on another network: any other answer that is not
+ * recognized leaves the status UNKNOWN, so the login is still tried.
+ *
+ * @author maartend
+ *
+ */
+public class ConnectivityProbe {
+
+	public static final String DEFAULT_PROBE_URL = "http://clients3.google.com/generate_204";
+
+	public static final String NETLOGIN_HOST = "netlogin.kuleuven.be";
+
+	/**
+	 * The number of bytes of an unexpected response body that are searched for
+	 * a reference to netlogin.
+	 */
+	private static final int MAX_BODY = 4096;
+
+	/****************************
+	 * STATUS
+	 ****************************/
+
+	public enum Status {
+		/**
+		 * The device can reach the internet, there is no need to log in.
+		 */
+		ONLINE,
+		/**
+		 * The device is held back by netlogin, logging in should help.
+		 */
+		NETLOGIN,
+		/**
+		 * The device is redirected to something else than netlogin, so it is
+		 * probably not connected to Kotnet.
+		 */
+		OTHER_NETWORK,
+		/**
+		 * The probe failed or its answer was not recognized, nothing is known.
+		 */
+		UNKNOWN;
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final String probeUrl;
+	private final String portalHost;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public ConnectivityProbe(String probeUrl) {
+		this(probeUrl, NETLOGIN_HOST);
+	}
+
+	/**
+	 * Creates a probe that recognizes the portal on the given host as
+	 * netlogin.
+	 */
+	public ConnectivityProbe(String probeUrl, String portalHost) {
+		this.probeUrl = probeUrl;
+		this.portalHost = portalHost;
+	}
+
+	public String getProbeUrl() {
+		return probeUrl;
+	}
+
+	/****************************
+	 * PROBING
+	 ****************************/
+
+	/**
+	 * Probes the connection. Never throws: when the probe fails, the status is
+	 * UNKNOWN.
+	 */
+	public Status probe(Deadline deadline) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(probeUrl).openConnection();
+			connection.setInstanceFollowRedirects(false);
+			connection.setUseCaches(false);
+			connection.setConnectTimeout(deadline.asTimeout());
+			connection.setReadTimeout(deadline.asTimeout());
+			int status = connection.getResponseCode();
+			if(status == HttpURLConnection.HTTP_NO_CONTENT) {
+				return Status.ONLINE;
+			}
+			String location = connection.getHeaderField("Location");
+			if(status >= 300 && status < 400 && location != null) {
+				// redirected to a portal: netlogin's or another one
+				return location.contains(portalHost) ? Status.NETLOGIN : Status.OTHER_NETWORK;
+			}
+			if(status >= 200 && status < 300 && bodyMentionsNetlogin(connection.getInputStream())) {
+				return Status.NETLOGIN;
+			}
+			return Status.UNKNOWN;
+		} catch (IOException e) {
+			return Status.UNKNOWN;
+		} finally {
+			if(connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Returns whether the start of the given body refers to netlogin, for
+	 * portals that redirect with a meta refresh or a script.
+	 */
+	private boolean bodyMentionsNetlogin(InputStream in) throws IOException {
+		try {
+			byte[] body = new byte[MAX_BODY];
+			int length = 0;
+			int read;
+			while(length < MAX_BODY && (read = in.read(body, length, MAX_BODY - length)) != -1) {
+				length += read;
+			}
+			return new String(body, 0, length, "ISO-8859-1").contains(portalHost);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package be.maartendecat.kotnetlogin;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
+
+/**
+ * Receives the connectivity changes of the device and tells the
+ * {@link AutoLoginService} when Wi-Fi connects or disconnects, if the user
+ * enabled automatic login. When Wi-Fi connects, the host of the login page
+ * is resolved in the background either way.
+ *
+ * @author maartend
+ *
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		NetworkInfo info = (NetworkInfo) intent.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO);
+		if(info == null || info.getType() != ConnectivityManager.TYPE_WIFI) {
+			return;
+		}
+		if(info.isConnected()) {
+			LoginManager.getInstance().refreshDns();
+		}
+		boolean enabled = PreferenceManager.getDefaultSharedPreferences(context).getBoolean("autologin", false);
+		if(!enabled) {
+			return;
+		}
+		Intent service = new Intent(context, AutoLoginService.class);
+		service.setAction(info.isConnected() ? AutoLoginService.ACTION_WIFI_CONNECTED : AutoLoginService.ACTION_WIFI_DISCONNECTED);
+		context.startService(service);
+	}
+
+}
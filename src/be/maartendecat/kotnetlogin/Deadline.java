@@ -0,0 +1,103 @@
+package be.maartendecat.kotnetlogin;
+
+/**
+ * A point in time by which an operation must be finished. One deadline is
+ * shared by all stages of a login procedure, so the procedure as a whole
+ * cannot take longer than its time budget.
+ *
+ * @author maartend
+ *
+ */
+public class Deadline {
+
+	/**
+	 * A deadline that never expires.
+	 */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+	/**
+	 * The deadline in nanoseconds, relative to System.nanoTime().
+	 */
+	private final long deadline;
+
+	/**
+	 * The maximal timeout of a single socket operation (in milliseconds), 0
+	 * for no other limit than the deadline.
+	 */
+	private final long maxTimeout;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	private Deadline(long deadline) {
+		this(deadline, 0);
+	}
+
+	private Deadline(long deadline, long maxTimeout) {
+		this.deadline = deadline;
+		this.maxTimeout = maxTimeout;
+	}
+
+	/**
+	 * Returns a deadline the given number of milliseconds from now.
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + millis * 1000000L);
+	}
+
+	/**
+	 * Returns the same deadline, but with socket timeouts (see
+	 * {@link #asTimeout()}) of at most the given number of milliseconds, e.g.
+	 * so a timed out attempt leaves time for a retry. A deadline that never
+	 * expires is returned as is.
+	 */
+	public Deadline withMaxTimeout(long millis) {
+		if(this == NONE || millis <= 0 || (maxTimeout > 0 && maxTimeout <= millis)) {
+			return this;
+		}
+		return new Deadline(deadline, millis);
+	}
+
+	/****************************
+	 * QUERIES
+	 ****************************/
+
+	/**
+	 * Returns the number of milliseconds left before the deadline, 0 if it has
+	 * expired and Long.MAX_VALUE for a deadline that never expires.
+	 */
+	public long remainingMillis() {
+		if(this == NONE) {
+			return Long.MAX_VALUE;
+		}
+		long remaining = (deadline - System.nanoTime()) / 1000000L;
+		return remaining > 0 ? remaining : 0;
+	}
+
+	public boolean isExpired() {
+		return remainingMillis() == 0;
+	}
+
+	/**
+	 * Returns the remaining time as a timeout for a socket operation: at least
+	 * one millisecond (0 means no timeout there), at most the maximal timeout
+	 * if there is one, and 0 for no deadline.
+	 *
+	 * @throws DeadlineExceededException	When the deadline has expired.
+	 */
+	public int asTimeout() throws DeadlineExceededException {
+		if(this == NONE) {
+			return 0;
+		}
+		long remaining = remainingMillis();
+		if(remaining == 0) {
+			throw new DeadlineExceededException();
+		}
+		if(maxTimeout > 0) {
+			remaining = Math.min(remaining, maxTimeout);
+		}
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+}
@@ -0,0 +1,19 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when an operation did not finish before its {@link Deadline}.
+ *
+ * @author maartend
+ *
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+
+	private static final long serialVersionUID = 4203744153478810395L;
+
+	public DeadlineExceededException() {
+		super("Deadline exceeded");
+	}
+
+}
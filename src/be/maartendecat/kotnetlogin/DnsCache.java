@@ -0,0 +1,329 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the addresses of the hosts the login depends on (see
+ * {@link #add(String)}), so a login does not wait for the resolver of the
+ * captive network, which tends to be slow or flaky before logging in.
+ *
+ * Addresses are used for TTL after they were resolved. After that, the host
+ * is resolved again, but when that fails or takes longer than STALE_WAIT,
+ * the last known address is used for up to MAX_STALE: the lookup goes on in
+ * the background and updates the cache when it succeeds. All hosts can be
+ * resolved in the background ahead of time, e.g. when a network comes up
+ * (see {@link #refreshInBackground()}).
+ *
+ * Only one lookup per host runs at a time; callers that need the same host
+ * wait for the running lookup.
+ *
+ * {@link HttpClient} only connects to the cached addresses for plain HTTP.
+ * HTTPS connections are made by host name, so the platform verifies the
+ * certificate against it; for those, resolving ahead of time fills the
+ * resolver cache of the platform.
+ *
+ * @author maartend
+ *
+ */
+public class DnsCache {
+
+	/**
+	 * How long a resolved address is used without resolving it again (in
+	 * milliseconds).
+	 */
+	private static final long TTL = 5 * 60 * 1000;
+
+	/**
+	 * How long the last known address can stand in when resolving fails (in
+	 * milliseconds).
+	 */
+	private static final long MAX_STALE = 24 * 60 * 60 * 1000;
+
+	/**
+	 * How long a lookup is waited for when the last known address could be
+	 * used instead (in milliseconds).
+	 */
+	private static final long STALE_WAIT = 500;
+
+	/************************************
+	 * STATIC SINGLETON STUFF
+	 ************************************/
+
+	private static DnsCache instance;
+
+	public static synchronized DnsCache getInstance() {
+		if(instance == null) {
+			instance = new DnsCache();
+		}
+		return instance;
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final Set<String> hosts = new CopyOnWriteArraySet<String>();
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentHashMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+	/**
+	 * Runs the lookups: resolving cannot be interrupted, so a caller that stops
+	 * waiting leaves the lookup running here.
+	 */
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "dns-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+	private final AtomicLong resolved = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong resolveNanos = new AtomicLong();
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	private DnsCache() {
+
+	}
+
+	/****************************
+	 * HOSTS
+	 ****************************/
+
+	/**
+	 * Caches the addresses of the given host from now on.
+	 */
+	public void add(String host) {
+		hosts.add(host.toLowerCase());
+	}
+
+	/**
+	 * Returns whether the addresses of the given host are cached.
+	 */
+	public boolean contains(String host) {
+		return hosts.contains(host.toLowerCase());
+	}
+
+	/****************************
+	 * LOOKUP
+	 ****************************/
+
+	/**
+	 * Returns the addresses of the given host, in the order to try them: the
+	 * cached ones if they are recent enough, newly resolved ones otherwise,
+	 * or the last known ones when resolving fails or is slow.
+	 *
+	 * @throws UnknownHostException			When the host cannot be resolved and
+	 * 										no address is known.
+	 * @throws DeadlineExceededException	When the deadline expires while
+	 * 										resolving and no address is known.
+	 */
+	public InetAddress[] lookup(String host, Deadline deadline) throws UnknownHostException, InterruptedIOException {
+		host = host.toLowerCase();
+		Entry entry = entries.get(host);
+		if(entry != null && entry.isFresh()) {
+			hits.incrementAndGet();
+			return entry.addresses.clone();
+		}
+		if(entry != null && !entry.isUsable()) {
+			entry = null;
+		}
+		Lookup lookup = startLookup(host);
+		try {
+			long wait = (entry == null) ? deadline.remainingMillis() : Math.min(STALE_WAIT, deadline.remainingMillis());
+			return lookup.get(wait, TimeUnit.MILLISECONDS).clone();
+		} catch (TimeoutException e) {
+			if(entry == null) {
+				throw new DeadlineExceededException();
+			}
+		} catch (ExecutionException e) {
+			if(entry == null) {
+				if(e.getCause() instanceof UnknownHostException) {
+					throw (UnknownHostException) e.getCause();
+				}
+				UnknownHostException unknown = new UnknownHostException(host);
+				unknown.initCause(e.getCause());
+				throw unknown;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		fallbacks.incrementAndGet();
+		return entry.addresses.clone();
+	}
+
+	/**
+	 * Resolves all cached hosts again, in the background.
+	 */
+	public void refreshInBackground() {
+		for(String host: hosts) {
+			startLookup(host);
+		}
+	}
+
+	/**
+	 * Resolves the given host again on the next lookup, e.g. because its
+	 * address could not be connected to. The address can still stand in if
+	 * resolving fails.
+	 */
+	public void invalidate(String host) {
+		host = host.toLowerCase();
+		Entry entry = entries.get(host);
+		if(entry != null) {
+			entries.replace(host, entry, new Entry(entry.addresses, entry.resolvedAt, true));
+		}
+	}
+
+	/****************************
+	 * METRICS
+	 ****************************/
+
+	/**
+	 * Returns the number of lookups answered from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups answered with the last known address
+	 * because resolving failed or was slow.
+	 */
+	public long getFallbacks() {
+		return fallbacks.get();
+	}
+
+	/**
+	 * Returns the number of times a host was resolved, and failed to.
+	 */
+	public long getResolved() {
+		return resolved.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the average time spent resolving a host, successfully or not,
+	 * -1 if no host was resolved yet. Unlike the DNS stage of a login, this
+	 * does not count the lookups answered by the cache.
+	 */
+	public long getAverageResolveMillis() {
+		long count = resolved.get() + failed.get();
+		return (count == 0) ? -1 : resolveNanos.get() / count / 1000000L;
+	}
+
+	@Override
+	public String toString() {
+		return hits.get() + " hits, " + fallbacks.get() + " fallbacks, " + resolved.get() + " resolved, "
+				+ failed.get() + " failed, average " + getAverageResolveMillis() + "ms";
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Starts resolving the given host, unless that is going on already.
+	 */
+	private Lookup startLookup(String host) {
+		Lookup lookup = lookups.get(host);
+		if(lookup != null) {
+			return lookup;
+		}
+		lookup = new Lookup(host);
+		Lookup running = lookups.putIfAbsent(host, lookup);
+		if(running != null) {
+			return running;
+		}
+		executor.execute(lookup);
+		return lookup;
+	}
+
+	/****************************
+	 * HELPER CLASSES
+	 ****************************/
+
+	/**
+	 * The addresses of a host and when they were resolved.
+	 */
+	private static class Entry {
+
+		private final InetAddress[] addresses;
+		private final long resolvedAt;
+		private final boolean invalidated;
+
+		Entry(InetAddress[] addresses, long resolvedAt, boolean invalidated) {
+			this.addresses = addresses;
+			this.resolvedAt = resolvedAt;
+			this.invalidated = invalidated;
+		}
+
+		boolean isFresh() {
+			return !invalidated && System.nanoTime() - resolvedAt < TTL * 1000000L;
+		}
+
+		boolean isUsable() {
+			return System.nanoTime() - resolvedAt < MAX_STALE * 1000000L;
+		}
+	}
+
+	/**
+	 * Resolves a host and stores its addresses.
+	 */
+	private class Lookup extends FutureTask<InetAddress[]> {
+
+		private final String host;
+
+		Lookup(final String host) {
+			super(new Callable<InetAddress[]>() {
+				public InetAddress[] call() throws UnknownHostException {
+					long start = System.nanoTime();
+					try {
+						InetAddress[] addresses = InetAddress.getAllByName(host);
+						entries.put(host, new Entry(addresses, System.nanoTime(), false));
+						resolved.incrementAndGet();
+						return addresses;
+					} catch (UnknownHostException e) {
+						failed.incrementAndGet();
+						throw e;
+					} finally {
+						resolveNanos.addAndGet(System.nanoTime() - start);
+					}
+				}
+			});
+			this.host = host;
+		}
+
+		@Override
+		protected void done() {
+			lookups.remove(host, this);
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Evaluator;
+
+import be.maartendecat.kotnetlogin.ResultClassifier.Marker;
+import be.maartendecat.kotnetlogin.ResultClassifier.Outcome;
+
+/**
+ * An {@link InstitutionProfile} compiled for logging in: the selector of the
+ * login form and the markers of the result page are built once,
+ * when the plan is compiled, instead of on every login. A plan is immutable
+ * and can be shared by all sessions.
+ *
+ * @author maartend
+ *
+ */
+public class ExtractionPlan {
+
+	/**
+	 * The plan of the built-in KU Leuven profile.
+	 */
+	public static final ExtractionPlan KU_LEUVEN = compile(InstitutionProfile.KU_LEUVEN);
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final InstitutionProfile profile;
+	private final Evaluator formSelector;
+	private final ResultClassifier classifier;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	private ExtractionPlan(InstitutionProfile profile, Evaluator formSelector, ResultClassifier classifier) {
+		this.profile = profile;
+		this.formSelector = formSelector;
+		this.classifier = classifier;
+	}
+
+	/**
+	 * Compiles the given profile.
+	 */
+	public static ExtractionPlan compile(InstitutionProfile profile) {
+		String formName = profile.getFormName();
+		List<Marker> markers = new ArrayList<Marker>();
+		for(String failure: profile.getFailureMarkers()) {
+			markers.add(new Marker(Outcome.FAILURE, failure));
+		}
+		for(String success: profile.getSuccessMarkers()) {
+			markers.add(new Marker(Outcome.SUCCESS, success));
+		}
+		// the login form is shown again when the submitted one was not accepted
+		markers.add(new Marker(Outcome.LOGIN_PAGE, "name=\"" + formName + "\""));
+		markers.add(new Marker(Outcome.LOGIN_PAGE, "name='" + formName + "'"));
+		markers.add(new Marker(Outcome.LOGIN_PAGE, "name=" + formName));
+		return new ExtractionPlan(profile, new FormWithName(formName), new ResultClassifier(markers));
+	}
+
+	/**
+	 * Returns a copy of this plan with another login page.
+	 */
+	public ExtractionPlan withLoginPageUrl(String loginPageUrl) {
+		return new ExtractionPlan(profile.withLoginPageUrl(loginPageUrl), formSelector, classifier);
+	}
+
+	/**
+	 * Returns a copy of this plan that classifies result pages with the given
+	 * markers instead of those of the profile.
+	 */
+	public ExtractionPlan withResultMarkers(List<Marker> markers) {
+		return new ExtractionPlan(profile, formSelector, new ResultClassifier(markers));
+	}
+
+	/****************************
+	 * GETTERS
+	 ****************************/
+
+	public InstitutionProfile getProfile() {
+		return profile;
+	}
+
+	public String getLoginPageUrl() {
+		return profile.getLoginPageUrl();
+	}
+
+	public String getUsernameField() {
+		return profile.getUsernameField();
+	}
+
+	public String getPortalHost() {
+		return profile.getPortalHost();
+	}
+
+	public ResultClassifier getClassifier() {
+		return classifier;
+	}
+
+	/****************************
+	 * EXTRACTION
+	 ****************************/
+
+	/**
+	 * Returns a streaming extractor of the login form from the given page.
+	 */
+	public LoginFormExtractor newExtractor(Reader in) {
+		return new LoginFormExtractor(in, profile.getFormName());
+	}
+
+	/**
+	 * Extracts the login form from a fully parsed login page, see
+	 * {@link LoginForm#fromDocument(Document)}.
+	 */
+	public LoginForm extractForm(Document loginPage) throws LoginFormException {
+		return LoginForm.fromDocument(loginPage, formSelector, profile.getFormName());
+	}
+
+	/****************************
+	 * HELPER CLASSES
+	 ****************************/
+
+	/**
+	 * Selects the forms with the given name, as "form[name=...]" would. The
+	 * name comes from a profile, so it is compared as is instead of being put
+	 * in a selector that it could break.
+	 */
+	private static class FormWithName extends Evaluator {
+
+		private final String name;
+
+		FormWithName(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public boolean matches(Element root, Element element) {
+			return element.normalName().equals("form") && name.equalsIgnoreCase(element.attr("name").trim());
+		}
+
+		@Override
+		public String toString() {
+			return "form[name=" + name + "]";
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package be.maartendecat.kotnetlogin;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes the fetches of the app ({@link AsyncFetch}) on a small bounded
+ * pool of its own, so a hanging fetch does not block unrelated background
+ * work and vice versa. Also provides the timer used to enforce deadlines,
+ * delivery of results on the main thread and a thread for disk work (loading
+ * and saving state), which thereby never waits for a fetch or delays one.
+ *
+ * @author maartend
+ *
+ */
+public class FetchEngine {
+
+	/************************************
+	 * STATIC SINGLETON STUFF
+	 ************************************/
+
+	private static FetchEngine instance;
+
+	public static synchronized FetchEngine getInstance() {
+		if(instance == null) {
+			instance = new FetchEngine();
+		}
+		return instance;
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	/**
+	 * The number of fetches that can run in parallel.
+	 */
+	private static final int POOL_SIZE = 3;
+
+	/**
+	 * The number of fetches that can wait for a thread. Submitting more
+	 * fetches than this fails right away.
+	 */
+	private static final int QUEUE_SIZE = 16;
+
+	/**
+	 * The number of requests that can run in parallel on behalf of fetches,
+	 * e.g. hedged requests.
+	 */
+	private static final int ATTEMPT_POOL_SIZE = 4;
+
+	private final ThreadPoolExecutor executor;
+	private final ThreadPoolExecutor attempts;
+	private final ThreadPoolExecutor disk;
+	private final ScheduledExecutorService timer;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	private FetchEngine() {
+		executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), new NamedThreadFactory("fetch"));
+		// don't keep idle threads around
+		executor.allowCoreThreadTimeOut(true);
+		// no queue: a request that cannot run right away is not worth it
+		attempts = new ThreadPoolExecutor(0, ATTEMPT_POOL_SIZE, 30, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new NamedThreadFactory("attempt"));
+		// one thread, with an unbounded queue: disk work is rare and must not be dropped
+		disk = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("disk"));
+		disk.allowCoreThreadTimeOut(true);
+		timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("fetch-timer"));
+	}
+
+	/****************************
+	 * EXECUTION
+	 ****************************/
+
+	/**
+	 * Runs the given task on the fetch pool.
+	 *
+	 * @throws RejectedExecutionException	When too many tasks are waiting.
+	 */
+	public Future<?> submit(Runnable task) {
+		return executor.submit(task);
+	}
+
+	/**
+	 * Returns the executor for requests made on behalf of a running fetch.
+	 * It has no queue: it rejects a task when all its threads are busy. Fetches
+	 * wait for these requests, so they must not run on the fetch pool itself.
+	 */
+	public ExecutorService getAttemptExecutor() {
+		return attempts;
+	}
+
+	/**
+	 * Runs the given task on the timer thread after the given delay. The task
+	 * should be short.
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+		return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the given task on the disk thread, after the disk work submitted
+	 * before it. Meant for loading and saving state, not for fetches.
+	 */
+	public void runOnDiskThread(Runnable task) {
+		disk.execute(task);
+	}
+
+	/**
+	 * Runs the given task on the main (UI) thread, see
+	 * {@link Platform#runOnMainThread(Runnable)}.
+	 */
+	public void runOnMainThread(Runnable task) {
+		Platform.getInstance().runOnMainThread(task);
+	}
+
+	/****************************
+	 * HELPER CLASSES
+	 ****************************/
+
+	/**
+	 * Creates daemon threads with recognizable names.
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
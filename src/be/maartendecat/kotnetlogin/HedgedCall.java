@@ -0,0 +1,118 @@
+package be.maartendecat.kotnetlogin;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a call and, if it has not finished after a delay, a backup of it in
+ * parallel. The first one to succeed wins; the other one is cancelled.
+ *
+ * Both calls run on the given executor while the calling thread waits, so the
+ * winner is returned as soon as it finishes. When the executor has no thread
+ * left, the call simply runs on the calling thread without a backup.
+ *
+ * @author maartend
+ *
+ */
+public class HedgedCall {
+
+	private HedgedCall() {
+
+	}
+
+	/**
+	 * The outcome of one of the calls.
+	 */
+	private static class Outcome<T> {
+
+		private final T value;
+		private final Exception error;
+
+		Outcome(T value, Exception error) {
+			this.value = value;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Runs the primary call, and the backup call too if the primary did not
+	 * finish within delayMillis. Returns the result of the first call that
+	 * succeeds.
+	 *
+	 * @throws Exception	The failure of the primary call if it failed before
+	 * 						the backup was started, otherwise the first failure
+	 * 						if both failed.
+	 * @throws DeadlineExceededException	When the deadline passed first.
+	 */
+	public static <T> T call(Callable<T> primary, Callable<T> backup, long delayMillis, Deadline deadline, ExecutorService executor) throws Exception {
+		BlockingQueue<Outcome<T>> outcomes = new LinkedBlockingQueue<Outcome<T>>();
+		Future<?> first;
+		try {
+			first = executor.submit(task(primary, outcomes));
+		} catch (RejectedExecutionException e) {
+			return primary.call();
+		}
+		Future<?> second = null;
+		try {
+			long hedgeAt = System.nanoTime() + delayMillis * 1000000L;
+			boolean hedged = false;
+			int running = 1;
+			Exception failure = null;
+			while(true) {
+				long wait = deadline.remainingMillis();
+				if(!hedged) {
+					wait = Math.min(wait, Math.max(0, (hedgeAt - System.nanoTime()) / 1000000L));
+				}
+				Outcome<T> outcome = outcomes.poll(wait, TimeUnit.MILLISECONDS);
+				if(outcome == null) {
+					if(deadline.isExpired()) {
+						throw new DeadlineExceededException();
+					}
+					if(!hedged) {
+						hedged = true;
+						try {
+							second = executor.submit(task(backup, outcomes));
+							running++;
+						} catch (RejectedExecutionException e) {
+							// no thread left, keep waiting for the primary
+						}
+					}
+					continue;
+				}
+				running--;
+				if(outcome.error == null) {
+					return outcome.value;
+				}
+				if(failure == null) {
+					failure = outcome.error;
+				}
+				if(running == 0) {
+					throw failure;
+				}
+			}
+		} finally {
+			first.cancel(true);
+			if(second != null) {
+				second.cancel(true);
+			}
+		}
+	}
+
+	private static <T> Runnable task(final Callable<T> call, final BlockingQueue<Outcome<T>> outcomes) {
+		return new Runnable() {
+			public void run() {
+				try {
+					outcomes.add(new Outcome<T>(call.call(), null));
+				} catch (Exception e) {
+					outcomes.add(new Outcome<T>(null, e));
+				}
+			}
+		};
+	}
+
+}
@@ -0,0 +1,388 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import be.maartendecat.kotnetlogin.StageTimings.Stage;
+
+/**
+ * HTTP client shared by the stages of the login procedure.
+ *
+ * All requests of a client go through the same SSL socket factory, so they
+ * share one TLS session cache and pooled keep-alive connections: the POST of
+ * the login form reuses the connection (or at least the TLS session) of the
+ * login page GET. Cookies set by one stage are sent along with the next ones.
+ * Redirects are followed by the client itself, so cookies set on a redirect
+ * are not lost.
+ *
+ * Responses may be compressed (see {@link HttpResponse}).
+ *
+ * Plain HTTP requests to the hosts of the {@link DnsCache} connect to the
+ * cached addresses, one after the other until one connects, with the host
+ * name in the Host header. That needs the Host header, which a plain JVM
+ * only allows with the system property sun.net.http.allowRestrictedHeaders:
+ * without it, these hosts are resolved as usual. HTTPS requests always
+ * connect by host name, so the platform checks the certificate against the
+ * host as it always does.
+ *
+ * The client records the DNS (for cached hosts), CONNECT, TLS, POST and
+ * FIRST_BYTE stages of the fetch running on the current thread (see
+ * {@link StageTimings}).
+ *
+ * @author maartend
+ *
+ */
+public class HttpClient {
+
+	private static final int MAX_REDIRECTS = 5;
+
+	static {
+		// keep-alive is the default, but make sure nobody turned it off
+		System.setProperty("http.keepAlive", "true");
+	}
+
+	/**
+	 * Whether the Host header can be set, null if not known yet. A plain JVM
+	 * drops it unless the application allows restricted headers, in which
+	 * case the cached addresses are not used.
+	 */
+	private static Boolean hostHeaderAllowed = null;
+
+	private final CookieManager cookies = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+	private final LazySSLSocketFactory sslSocketFactory;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	/**
+	 * Creates a client. Its SSL context is only set up on the first HTTPS
+	 * request: that takes a while and a client is created at startup.
+	 */
+	public HttpClient() {
+		this(new LazySSLSocketFactory());
+	}
+
+	private HttpClient(LazySSLSocketFactory sslSocketFactory) {
+		this.sslSocketFactory = sslSocketFactory;
+	}
+
+	/****************************
+	 * REQUESTS
+	 ****************************/
+
+	/**
+	 * Executes the given request as a GET. The form data of the request, if any,
+	 * is ignored.
+	 */
+	public HttpResponse get(HttpRequest request) throws IOException {
+		return get(request, Deadline.NONE);
+	}
+
+	/**
+	 * Executes the given request as a GET, with connect and read timeouts such
+	 * that the response is received by the given deadline.
+	 */
+	public HttpResponse get(HttpRequest request, Deadline deadline) throws IOException {
+		return execute(new URL(request.getUrl()), null, deadline);
+	}
+
+	/**
+	 * Executes the given request as a POST of its form data.
+	 */
+	public HttpResponse post(HttpRequest request) throws IOException {
+		return post(request, Deadline.NONE);
+	}
+
+	/**
+	 * Executes the given request as a POST of its form data, with connect and
+	 * read timeouts such that the response is received by the given deadline.
+	 */
+	public HttpResponse post(HttpRequest request, Deadline deadline) throws IOException {
+		return execute(new URL(request.getUrl()), encode(request.getData()), deadline);
+	}
+
+	/**
+	 * Removes all cookies stored by this client.
+	 */
+	public void clearCookies() {
+		cookies.getCookieStore().removeAll();
+	}
+
+	/**
+	 * Returns a client with a copy of the cookies of this one, sharing its TLS
+	 * sessions. Cookies set on the fork do not reach this client, unless
+	 * they are adopted with {@link #adoptCookies(HttpClient)}.
+	 */
+	public HttpClient fork() {
+		HttpClient fork = new HttpClient(sslSocketFactory);
+		copyCookies(cookies.getCookieStore(), fork.cookies.getCookieStore());
+		return fork;
+	}
+
+	/**
+	 * Replaces the cookies of this client with those of the given one, for
+	 * example of the fork whose request won.
+	 */
+	public void adoptCookies(HttpClient other) {
+		CookieStore store = cookies.getCookieStore();
+		store.removeAll();
+		copyCookies(other.cookies.getCookieStore(), store);
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Executes a GET (body null) or a POST (body not null), following redirects.
+	 */
+	private HttpResponse execute(URL url, byte[] body, Deadline deadline) throws IOException {
+		for(int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+			InetAddress[] addresses = resolve(url, deadline);
+			HttpURLConnection connection = (addresses == null)
+					? openAndConnect(url, null, body, deadline, deadline.asTimeout())
+					: openAndConnect(url, addresses, body, deadline);
+			if(body != null) {
+				long start = System.nanoTime();
+				OutputStream out = connection.getOutputStream();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+				StageTimings.record(Stage.POST, System.nanoTime() - start);
+			}
+			long sent = System.nanoTime();
+			int status = connection.getResponseCode();
+			StageTimings.record(Stage.FIRST_BYTE, System.nanoTime() - sent);
+			storeCookies(url, connection);
+			String location = connection.getHeaderField("Location");
+			if(status < 300 || status >= 400 || status == 304 || location == null) {
+				return new HttpResponse(connection, url);
+			}
+			// redirect: a POST becomes a GET, except for 307
+			new HttpResponse(connection, url).close();
+			url = new URL(url, location);
+			if(status != 307) {
+				body = null;
+			}
+		}
+		throw new ProtocolException("Too many redirects");
+	}
+
+	/**
+	 * Returns the addresses to connect to for a plain HTTP request to a host
+	 * of the DNS cache, looked up as the DNS stage. Returns null for other
+	 * requests: the connection resolves their host by itself.
+	 */
+	private static InetAddress[] resolve(URL url, Deadline deadline) throws IOException {
+		DnsCache dns = DnsCache.getInstance();
+		if(!"http".equals(url.getProtocol()) || !dns.contains(url.getHost()) || !isHostHeaderAllowed()) {
+			return null;
+		}
+		long start = System.nanoTime();
+		try {
+			return dns.lookup(url.getHost(), deadline);
+		} finally {
+			StageTimings.record(Stage.DNS, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Connects to the given addresses of the host of the given URL, one after
+	 * the other until one connects. Each address gets an equal part of the
+	 * remaining time, so an unreachable one (e.g. an IPv6 address on an
+	 * IPv4-only network) does not use it all. When none connects, the host
+	 * is resolved again on the next request: maybe it moved.
+	 */
+	private HttpURLConnection openAndConnect(URL url, InetAddress[] addresses, byte[] body, Deadline deadline) throws IOException {
+		IOException failure = null;
+		for(int i = 0; i < addresses.length; i++) {
+			int timeout = deadline.asTimeout();
+			if(timeout != 0) {
+				timeout = Math.max(1, timeout / (addresses.length - i));
+			}
+			try {
+				return openAndConnect(url, addresses[i], body, deadline, timeout);
+			} catch (DeadlineExceededException e) {
+				failure = e;
+				break;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		DnsCache.getInstance().invalidate(url.getHost());
+		throw failure;
+	}
+
+	/**
+	 * Opens a connection for the given URL, to the given address of its host
+	 * if not null, and connects it within the given connect timeout.
+	 */
+	private HttpURLConnection openAndConnect(URL url, InetAddress address, byte[] body, Deadline deadline, int connectTimeout) throws IOException {
+		HttpURLConnection connection = open(url, address);
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(deadline.asTimeout());
+		if(body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+			connection.setFixedLengthStreamingMode(body.length);
+		}
+		connect(connection);
+		return connection;
+	}
+
+	/**
+	 * Connects the given connection, timed as the CONNECT and TLS stages. A
+	 * connection taken from the keep-alive pool connects immediately.
+	 */
+	private static void connect(HttpURLConnection connection) throws IOException {
+		TimingSSLSocketFactory.takeLayeredAt();
+		long start = System.nanoTime();
+		try {
+			connection.connect();
+		} catch (SocketTimeoutException e) {
+			ConnectTimeoutException timeout = new ConnectTimeoutException(e.getMessage());
+			timeout.initCause(e);
+			throw timeout;
+		}
+		long end = System.nanoTime();
+		long layeredAt = TimingSSLSocketFactory.takeLayeredAt();
+		if(layeredAt == -1) {
+			StageTimings.record(Stage.CONNECT, end - start);
+		} else {
+			StageTimings.record(Stage.CONNECT, layeredAt - start);
+			StageTimings.record(Stage.TLS, end - layeredAt);
+		}
+	}
+
+	/**
+	 * Opens a connection for the given URL, to the given address of its host
+	 * if not null.
+	 */
+	private HttpURLConnection open(URL url, InetAddress address) throws IOException {
+		URL target = url;
+		if(address != null) {
+			target = new URL(url.getProtocol(), address.getHostAddress(), url.getPort(), url.getFile());
+		}
+		HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+		if(connection instanceof HttpsURLConnection) {
+			((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory.get());
+		}
+		if(address != null) {
+			connection.setRequestProperty("Host", (url.getPort() == -1 || url.getPort() == url.getDefaultPort())
+					? url.getHost() : url.getHost() + ":" + url.getPort());
+		}
+		connection.setInstanceFollowRedirects(false);
+		connection.setRequestProperty("Connection", "keep-alive");
+		// decompressed by the response; setting this also stops Android from
+		// decompressing transparently, which would hide the bytes received
+		connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		try {
+			Map<String, List<String>> headers = cookies.get(url.toURI(), Collections.<String, List<String>>emptyMap());
+			for(Map.Entry<String, List<String>> header: headers.entrySet()) {
+				for(String value: header.getValue()) {
+					connection.addRequestProperty(header.getKey(), value);
+				}
+			}
+		} catch (URISyntaxException e) {
+			// no cookies for this URL then
+		}
+		return connection;
+	}
+
+	private void storeCookies(URL url, HttpURLConnection connection) throws IOException {
+		try {
+			cookies.put(url.toURI(), connection.getHeaderFields());
+		} catch (URISyntaxException e) {
+			// ignore the cookies of this URL then
+		}
+	}
+
+	/**
+	 * Returns whether the Host header of a request can be set. Checked once,
+	 * on a connection that is not connected.
+	 */
+	private static synchronized boolean isHostHeaderAllowed() throws IOException {
+		if(hostHeaderAllowed == null) {
+			URLConnection connection = new URL("http://127.0.0.1/").openConnection();
+			connection.setRequestProperty("Host", "localhost");
+			hostHeaderAllowed = "localhost".equals(connection.getRequestProperty("Host"));
+		}
+		return hostHeaderAllowed;
+	}
+
+	private static void copyCookies(CookieStore from, CookieStore to) {
+		for(URI uri: from.getURIs()) {
+			for(HttpCookie cookie: from.get(uri)) {
+				to.add(uri, cookie);
+			}
+		}
+	}
+
+	private static byte[] encode(Map<String, String> data) throws UnsupportedEncodingException {
+		StringBuilder body = new StringBuilder();
+		for(Map.Entry<String, String> field: data.entrySet()) {
+			if(body.length() > 0) {
+				body.append('&');
+			}
+			body.append(URLEncoder.encode(field.getKey(), "UTF-8"));
+			body.append('=');
+			body.append(URLEncoder.encode(field.getValue(), "UTF-8"));
+		}
+		return body.toString().getBytes("UTF-8");
+	}
+
+	/****************************
+	 * HELPER CLASSES
+	 ****************************/
+
+	/**
+	 * Creates the SSL socket factory on first use. A client and its forks
+	 * share one, and with it the TLS session cache.
+	 */
+	private static class LazySSLSocketFactory {
+
+		private SSLSocketFactory factory;
+
+		public synchronized SSLSocketFactory get() {
+			if(factory == null) {
+				SSLSocketFactory created;
+				try {
+					SSLContext context = SSLContext.getInstance("TLS");
+					context.init(null, null, null);
+					created = context.getSocketFactory();
+				} catch (GeneralSecurityException e) {
+					created = HttpsURLConnection.getDefaultSSLSocketFactory();
+				}
+				factory = new TimingSSLSocketFactory(created);
+			}
+			return factory;
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package be.maartendecat.kotnetlogin;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A request to be executed by an {@link HttpClient}: the URL and, for POST
+ * requests, the form data.
+ *
+ * @author maartend
+ *
+ */
+public class HttpRequest {
+
+	private final String url;
+	private final Map<String, String> data = new LinkedHashMap<String, String>();
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public HttpRequest(String url) {
+		this.url = url;
+	}
+
+	/****************************
+	 * REQUEST DATA
+	 ****************************/
+
+	/**
+	 * Adds a form field to the request. Returns this request for chaining.
+	 */
+	public HttpRequest data(String name, String value) {
+		data.put(name, value);
+		return this;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Returns the form fields of this request, in the order they were added.
+	 */
+	public Map<String, String> getData() {
+		return Collections.unmodifiableMap(data);
+	}
+
+}
@@ -0,0 +1,331 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import be.maartendecat.kotnetlogin.StageTimings.Stage;
+
+/**
+ * The response to a request executed by an {@link HttpClient}. The body can be
+ * read from {@link #getInputStream()}; always {@link #close()} the response
+ * afterwards so the connection can be reused for the next request.
+ *
+ * A gzip or deflate compressed body is decompressed while it is read, so it
+ * is never held in memory as a whole. The bytes received and the bytes read
+ * after decompression are counted, and added to the timings of the current
+ * fetch when the response is closed.
+ *
+ * @author maartend
+ *
+ */
+public class HttpResponse {
+
+	/**
+	 * The maximal number of unread bytes that are drained on close in order to
+	 * keep the connection alive. Larger leftovers are cheaper to drop together
+	 * with the connection.
+	 */
+	private static final int MAX_DRAIN = 16 * 1024;
+
+	/**
+	 * The size of the buffer for the compressed bytes.
+	 */
+	private static final int INFLATE_BUFFER_SIZE = 4 * 1024;
+
+	private final HttpURLConnection connection;
+	private final URL url;
+	private final InputStream in;
+	private final TimingInputStream body;
+
+	/**
+	 * The decompressed body, null until the body is requested.
+	 */
+	private CountingInputStream decoded = null;
+	private boolean closed = false;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	HttpResponse(HttpURLConnection connection, URL url) throws IOException {
+		this.connection = connection;
+		this.url = url;
+		this.in = connection.getInputStream();
+		this.body = new TimingInputStream(in);
+	}
+
+	/****************************
+	 * GETTERS
+	 ****************************/
+
+	/**
+	 * Returns the final URL of the response, after redirects.
+	 */
+	public URL getUrl() {
+		return url;
+	}
+
+	public int getStatusCode() throws IOException {
+		return connection.getResponseCode();
+	}
+
+	/**
+	 * Returns the length of the body from the Content-Length header, -1 if
+	 * it is not known or the body is compressed.
+	 */
+	public int getContentLength() {
+		return isEncoded() ? -1 : connection.getContentLength();
+	}
+
+	/**
+	 * Returns the Content-Encoding of the body, null if it is not compressed.
+	 */
+	public String getContentEncoding() {
+		String encoding = connection.getContentEncoding();
+		if(encoding == null || encoding.trim().length() == 0 || encoding.trim().equalsIgnoreCase("identity")) {
+			return null;
+		}
+		return encoding.trim().toLowerCase();
+	}
+
+	/**
+	 * Returns the charset from the Content-Type header of the response, null if
+	 * the header does not specify one.
+	 */
+	public String getCharset() {
+		String contentType = connection.getContentType();
+		if(contentType != null) {
+			for(String param: contentType.split(";")) {
+				param = param.trim();
+				if(param.toLowerCase().startsWith("charset=")) {
+					return param.substring("charset=".length()).replace("\"", "").trim();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the body, decompressed if needed.
+	 *
+	 * @throws IOException	When the body is compressed in an unsupported way
+	 * 						or its compression header is invalid.
+	 */
+	public InputStream getInputStream() throws IOException {
+		if(decoded == null) {
+			decoded = new CountingInputStream(decode());
+		}
+		return decoded;
+	}
+
+	/**
+	 * Returns the number of bytes of the body received so far, as sent by
+	 * the server.
+	 */
+	public long getWireBytes() {
+		return body.bytes;
+	}
+
+	/**
+	 * Returns the number of bytes of the body read so far, after
+	 * decompression.
+	 */
+	public long getDecodedBytes() {
+		return (decoded == null) ? 0 : decoded.bytes;
+	}
+
+	/**
+	 * Returns the time spent waiting for the body so far, in nanoseconds. This
+	 * time is also recorded as the DOWNLOAD stage of the current fetch.
+	 */
+	public long getReadNanos() {
+		return body.readNanos;
+	}
+
+	/****************************
+	 * CLOSING
+	 ****************************/
+
+	/**
+	 * Closes the response. A small unread rest of the body is drained so the
+	 * connection goes back to the keep-alive pool, otherwise the connection is
+	 * dropped.
+	 */
+	public void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			byte[] buffer = new byte[1024];
+			int drained = 0;
+			int read = 0;
+			while(drained <= MAX_DRAIN && (read = in.read(buffer)) != -1) {
+				drained += read;
+			}
+			body.bytes += drained;
+			// also frees the inflater, if any
+			(decoded == null ? in : decoded).close();
+			if(read != -1) {
+				connection.disconnect();
+			}
+		} catch(IOException e) {
+			connection.disconnect();
+		}
+		StageTimings.recordTransfer(getWireBytes(), getDecodedBytes());
+	}
+
+	/****************************
+	 * DECOMPRESSION
+	 ****************************/
+
+	private boolean isEncoded() {
+		return getContentEncoding() != null;
+	}
+
+	/**
+	 * Returns the body, wrapped in a decompressing stream if it is compressed.
+	 */
+	private InputStream decode() throws IOException {
+		String encoding = getContentEncoding();
+		int status = connection.getResponseCode();
+		if(encoding == null || status == HttpURLConnection.HTTP_NO_CONTENT
+				|| status == HttpURLConnection.HTTP_NOT_MODIFIED || connection.getContentLength() == 0) {
+			return body;
+		}
+		if(encoding.equals("gzip") || encoding.equals("x-gzip")) {
+			return new GZIPInputStream(body, INFLATE_BUFFER_SIZE);
+		}
+		if(encoding.equals("deflate")) {
+			// should be zlib-wrapped, but some servers send raw deflate data
+			PushbackInputStream peek = new PushbackInputStream(body, 2);
+			int first = peek.read();
+			int second = peek.read();
+			if(second != -1) {
+				peek.unread(second);
+			}
+			if(first != -1) {
+				peek.unread(first);
+			}
+			boolean zlib = (first & 0x0f) == 8 && second != -1 && ((first << 8) | second) % 31 == 0;
+			return new EndingInflaterInputStream(peek, new Inflater(!zlib), INFLATE_BUFFER_SIZE);
+		}
+		throw new IOException("Unsupported content encoding: " + encoding);
+	}
+
+	/**
+	 * Inflater input stream that frees its inflater when closed.
+	 */
+	private static class EndingInflaterInputStream extends InflaterInputStream {
+
+		EndingInflaterInputStream(InputStream in, Inflater inflater, int size) {
+			super(in, inflater, size);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+	}
+
+	/****************************
+	 * TIMING
+	 ****************************/
+
+	/**
+	 * Input stream that keeps track of the time spent in reading and the
+	 * number of bytes read.
+	 */
+	private static class TimingInputStream extends FilterInputStream {
+
+		private long readNanos = 0;
+		private long bytes = 0;
+
+		TimingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			try {
+				int read = super.read();
+				if(read != -1) {
+					bytes++;
+				}
+				return read;
+			} finally {
+				recordSince(start);
+			}
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			long start = System.nanoTime();
+			try {
+				int read = super.read(buffer, offset, length);
+				if(read > 0) {
+					bytes += read;
+				}
+				return read;
+			} finally {
+				recordSince(start);
+			}
+		}
+
+		private void recordSince(long start) {
+			long nanos = System.nanoTime() - start;
+			readNanos += nanos;
+			StageTimings.record(Stage.DOWNLOAD, nanos);
+		}
+	}
+
+	/**
+	 * Input stream that counts the bytes read.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long bytes = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if(read != -1) {
+				bytes++;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if(read > 0) {
+				bytes += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			bytes += skipped;
+			return skipped;
+		}
+	}
+
+}
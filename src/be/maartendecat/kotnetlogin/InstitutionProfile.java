@@ -0,0 +1,262 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Everything that differs between the institutions that log in through a
+ * netlogin portal: the login page, the name of the login form and of its
+ * username field, the texts that mark a failed and a successful login and the
+ * host of the portal.
+ *
+ * Besides the built-in {@link #KU_LEUVEN} profile, profiles can be read from
+ * properties files (see {@link #fromProperties(Properties)}), so a campus can
+ * be supported without a new version of the app. A profile is compiled into
+ * an {@link ExtractionPlan} before use.
+ *
+ * @author maartend
+ *
+ */
+public class InstitutionProfile {
+
+	/**
+	 * The profile of KU Leuven, used when no other one is chosen.
+	 */
+	public static final InstitutionProfile KU_LEUVEN = new InstitutionProfile("kuleuven", "KU Leuven",
+			"https://netlogin.kuleuven.be/cgi-bin/wayf2.pl?inst=kuleuven&lang=nl&submit=Ga+verder+%2F+Continue",
+			"netlogin", "uid", Collections.singletonList("Login NIET geslaagd"),
+			Collections.singletonList("Je bent aangemeld als"), ConnectivityProbe.NETLOGIN_HOST);
+
+	/**
+	 * The separator of the markers in a properties file.
+	 */
+	private static final String MARKER_SEPARATOR = "|";
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final String id;
+	private final String name;
+	private final String loginPageUrl;
+	private final String formName;
+	private final String usernameField;
+	private final List<String> failureMarkers;
+	private final List<String> successMarkers;
+	private final String portalHost;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public InstitutionProfile(String id, String name, String loginPageUrl, String formName, String usernameField,
+			List<String> failureMarkers, List<String> successMarkers, String portalHost) {
+		this.id = id;
+		this.name = name;
+		this.loginPageUrl = loginPageUrl;
+		this.formName = formName;
+		this.usernameField = usernameField;
+		this.failureMarkers = Collections.unmodifiableList(new ArrayList<String>(failureMarkers));
+		this.successMarkers = Collections.unmodifiableList(new ArrayList<String>(successMarkers));
+		this.portalHost = portalHost;
+	}
+
+	/****************************
+	 * LOADING
+	 ****************************/
+
+	/**
+	 * Reads a profile from the given properties file. See
+	 * {@link #fromProperties(Properties)} for its keys.
+	 *
+	 * @throws IllegalArgumentException	When the profile is not valid.
+	 */
+	public static InstitutionProfile load(InputStream in) throws IOException {
+		Properties properties = new Properties();
+		properties.load(in);
+		return fromProperties(properties);
+	}
+
+	/**
+	 * Reads a profile from the given properties:
+	 * <ul>
+	 * <li>id: identifies the profile (required)</li>
+	 * <li>name: shown to the user (default: the id)</li>
+	 * <li>login_page_url: the page with the login form, over https (required)</li>
+	 * <li>form_name: the name of the login form (default: netlogin)</li>
+	 * <li>username_field: the name of the username field (default: uid)</li>
+	 * <li>failure_markers: the texts on the result page of a failed login,
+	 * separated by "|" (default: the KU Leuven one)</li>
+	 * <li>success_markers: the texts on the result page of a successful login,
+	 * separated by "|", possibly none (default: the KU Leuven one). Reading the
+	 * page stops at a success marker, so it must come after the place where a
+	 * failure marker could still appear.</li>
+	 * <li>portal_host: the host the captive portal redirects to (default: the
+	 * host of the login page)</li>
+	 * </ul>
+	 *
+	 * @throws IllegalArgumentException	When the profile is not valid.
+	 */
+	public static InstitutionProfile fromProperties(Properties properties) {
+		String id = required(properties, "id");
+		String loginPageUrl = required(properties, "login_page_url");
+		String host;
+		try {
+			URL url = new URL(loginPageUrl);
+			host = url.getHost();
+			if(!url.getProtocol().equals("https")) {
+				// the password is posted to this page
+				throw new IllegalArgumentException("The login_page_url must use https: " + loginPageUrl);
+			}
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid login_page_url: " + loginPageUrl);
+		}
+		String formName = properties.getProperty("form_name", KU_LEUVEN.formName).trim();
+		if(formName.length() == 0) {
+			throw new IllegalArgumentException("Empty form_name");
+		}
+		List<String> failureMarkers = KU_LEUVEN.failureMarkers;
+		String markers = properties.getProperty("failure_markers");
+		if(markers != null) {
+			failureMarkers = parseMarkers(markers);
+			if(failureMarkers.isEmpty()) {
+				throw new IllegalArgumentException("No failure_markers");
+			}
+		}
+		List<String> successMarkers = KU_LEUVEN.successMarkers;
+		markers = properties.getProperty("success_markers");
+		if(markers != null) {
+			successMarkers = parseMarkers(markers);
+		}
+		return new InstitutionProfile(id,
+				properties.getProperty("name", id).trim(),
+				loginPageUrl,
+				formName,
+				properties.getProperty("username_field", KU_LEUVEN.usernameField).trim(),
+				failureMarkers,
+				successMarkers,
+				properties.getProperty("portal_host", host).trim());
+	}
+
+	/****************************
+	 * GETTERS
+	 ****************************/
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getLoginPageUrl() {
+		return loginPageUrl;
+	}
+
+	/**
+	 * Returns the host of the login page, which the credentials are sent to.
+	 */
+	public String getLoginHost() {
+		try {
+			return new URL(loginPageUrl).getHost();
+		} catch (MalformedURLException e) {
+			return loginPageUrl;
+		}
+	}
+
+	public String getFormName() {
+		return formName;
+	}
+
+	public String getUsernameField() {
+		return usernameField;
+	}
+
+	public List<String> getFailureMarkers() {
+		return failureMarkers;
+	}
+
+	public List<String> getSuccessMarkers() {
+		return successMarkers;
+	}
+
+	public String getPortalHost() {
+		return portalHost;
+	}
+
+	/**
+	 * Returns a copy of this profile with the given login page, for example
+	 * a local stand-in of netlogin.
+	 */
+	public InstitutionProfile withLoginPageUrl(String loginPageUrl) {
+		return new InstitutionProfile(id, name, loginPageUrl, formName, usernameField, failureMarkers, successMarkers, portalHost);
+	}
+
+	/**
+	 * Profiles are equal when they describe the same institution in the same
+	 * way, so loading an unchanged file again can be recognized.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if(!(other instanceof InstitutionProfile)) {
+			return false;
+		}
+		InstitutionProfile profile = (InstitutionProfile) other;
+		return id.equals(profile.id) && name.equals(profile.name) && loginPageUrl.equals(profile.loginPageUrl)
+				&& formName.equals(profile.formName) && usernameField.equals(profile.usernameField)
+				&& failureMarkers.equals(profile.failureMarkers) && successMarkers.equals(profile.successMarkers)
+				&& portalHost.equals(profile.portalHost);
+	}
+
+	@Override
+	public int hashCode() {
+		return id.hashCode() * 31 + loginPageUrl.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + id + ")";
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	private static String required(Properties properties, String key) {
+		String value = properties.getProperty(key);
+		if(value == null || value.trim().length() == 0) {
+			throw new IllegalArgumentException("Missing " + key);
+		}
+		return value.trim();
+	}
+
+	/**
+	 * Returns the non-empty markers in the given list separated by
+	 * MARKER_SEPARATOR.
+	 */
+	private static List<String> parseMarkers(String markers) {
+		List<String> result = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while((end = markers.indexOf(MARKER_SEPARATOR, start)) != -1) {
+			addMarker(result, markers.substring(start, end));
+			start = end + MARKER_SEPARATOR.length();
+		}
+		addMarker(result, markers.substring(start));
+		return result;
+	}
+
+	private static void addMarker(List<String> markers, String marker) {
+		if(marker.trim().length() > 0) {
+			markers.add(marker.trim());
+		}
+	}
+
+}
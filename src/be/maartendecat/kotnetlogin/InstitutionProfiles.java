@@ -0,0 +1,396 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.net.Uri;
+import android.os.FileObserver;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * The institution profiles known to the app: the built-in KU Leuven one and
+ * those in the "profiles" directory of the private files of the app, one
+ * properties file per profile (see {@link InstitutionProfile}).
+ *
+ * The profile chosen in the preferences is handed to the LoginManager. A
+ * profile is added to the directory by importing it, e.g. from a file the
+ * user picked: it is read and checked with
+ * {@link #readInBackground(Uri, ImportCallback)}, and only stored with
+ * {@link #storeInBackground(ProfileImport, ImportCallback)} once the user
+ * confirmed the host it sends the credentials to. The directory is watched: when a profile is added, changed or
+ * removed, the profiles are loaded again (in the background) and the chosen
+ * one is handed over again, so a campus can be added or fixed without a new
+ * version of the app.
+ *
+ * @author maartend
+ *
+ */
+public class InstitutionProfiles implements OnSharedPreferenceChangeListener {
+
+	private static final String TAG = "InstitutionProfiles";
+
+	private static final String PREF_INSTITUTION = "institution";
+	private static final String DIRECTORY = "profiles";
+	private static final String SUFFIX = ".properties";
+
+	/**
+	 * The maximal size of an imported profile (in bytes).
+	 */
+	private static final int MAX_IMPORT_SIZE = 64 * 1024;
+
+	/************************************
+	 * STATIC SINGLETON STUFF
+	 ************************************/
+
+	private static InstitutionProfiles instance;
+
+	public static InstitutionProfiles getInstance() {
+		if(instance == null) {
+			throw new NullPointerException("initialize before requesting an instance!");
+		}
+		return instance;
+	}
+
+	public static void initialize(Context ctx) {
+		if(instance == null) {
+			instance = new InstitutionProfiles(ctx.getApplicationContext());
+		}
+	}
+
+	/************************************
+	 * FIELDS
+	 ************************************/
+
+	private final File directory;
+	private final SharedPreferences prefs;
+	private final ContentResolver resolver;
+
+	/**
+	 * The profiles by id, the built-in one first.
+	 */
+	private volatile Map<String, InstitutionProfile> profiles = builtIn();
+
+	/**
+	 * Must be referenced to keep watching.
+	 */
+	private final FileObserver observer;
+
+	/************************************
+	 * CONSTRUCTOR
+	 ************************************/
+
+	private InstitutionProfiles(Context context) {
+		this.directory = new File(context.getFilesDir(), DIRECTORY);
+		directory.mkdirs();
+		this.prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		this.resolver = context.getContentResolver();
+		prefs.registerOnSharedPreferenceChangeListener(this);
+		this.observer = new FileObserver(directory.getPath(),
+				FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE) {
+
+			@Override
+			public void onEvent(int event, String path) {
+				if(path != null && path.endsWith(SUFFIX)) {
+					reloadInBackground();
+				}
+			}
+		};
+		observer.startWatching();
+		reloadInBackground();
+	}
+
+	/************************************
+	 * PROFILES
+	 ************************************/
+
+	/**
+	 * Returns the known profiles, the built-in one first.
+	 */
+	public List<InstitutionProfile> getProfiles() {
+		return new ArrayList<InstitutionProfile>(profiles.values());
+	}
+
+	/**
+	 * Returns the directory the profiles are read from.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Loads the profiles again, in the background, and hands the chosen one
+	 * to the LoginManager (in the main/UI thread).
+	 */
+	public void reloadInBackground() {
+		Runnable reload = new Runnable() {
+			public void run() {
+				profiles = load();
+				FetchEngine.getInstance().runOnMainThread(new Runnable() {
+					public void run() {
+						applyChosenProfile();
+					}
+				});
+			}
+		};
+		FetchEngine.getInstance().runOnDiskThread(reload);
+	}
+
+	/************************************
+	 * IMPORT
+	 ************************************/
+
+	/**
+	 * A profile that was read and found valid, but not stored yet: the user
+	 * has to confirm it first (see {@link InstitutionProfiles#storeInBackground(ProfileImport, ImportCallback)}).
+	 */
+	public static class ProfileImport {
+
+		private final InstitutionProfile profile;
+		private final byte[] contents;
+
+		private ProfileImport(InstitutionProfile profile, byte[] contents) {
+			this.profile = profile;
+			this.contents = contents;
+		}
+
+		public InstitutionProfile getProfile() {
+			return profile;
+		}
+	}
+
+	/**
+	 * Called when a step of an import finished (in the main/UI thread).
+	 */
+	public interface ImportCallback {
+
+		/**
+		 * Called when the profile was read and is valid. It is only stored
+		 * once the user confirmed that the login may go to its host.
+		 */
+		public void onRead(ProfileImport profileImport);
+
+		public void onImported(InstitutionProfile profile);
+
+		/**
+		 * Called when the file is not a valid profile.
+		 */
+		public void onInvalidProfile(String description);
+
+		public void onIOException(IOException e);
+	}
+
+	/**
+	 * Reads and checks the profile at the given URI, in the background. A
+	 * profile has to log in over https and cannot take the id of a built-in
+	 * profile. Nothing is stored yet.
+	 */
+	public void readInBackground(final Uri uri, final ImportCallback callback) {
+		runImportStep(callback, new ImportStep() {
+			public void run() throws IOException {
+				final ProfileImport result = readProfile(uri);
+				FetchEngine.getInstance().runOnMainThread(new Runnable() {
+					public void run() {
+						callback.onRead(result);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Stores the given profile, confirmed by the user, in the directory under
+	 * its id, in the background. It replaces the profile with the same id.
+	 */
+	public void storeInBackground(final ProfileImport profileImport, final ImportCallback callback) {
+		runImportStep(callback, new ImportStep() {
+			public void run() throws IOException {
+				storeProfile(profileImport);
+				// known right away, not only once the observer notices
+				profiles = load();
+				FetchEngine.getInstance().runOnMainThread(new Runnable() {
+					public void run() {
+						callback.onImported(profileImport.getProfile());
+					}
+				});
+			}
+		});
+	}
+
+	/************************************
+	 * SHARED PREFERENCE LISTENER METHODS
+	 ************************************/
+
+	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+		if(PREF_INSTITUTION.equals(key)) {
+			applyChosenProfile();
+		}
+	}
+
+	/************************************
+	 * HELPER METHODS
+	 ************************************/
+
+	private void applyChosenProfile() {
+		String id = prefs.getString(PREF_INSTITUTION, InstitutionProfile.KU_LEUVEN.getId());
+		InstitutionProfile profile = profiles.get(id);
+		if(profile == null) {
+			Log.w(TAG, "Unknown institution " + id + ", using " + InstitutionProfile.KU_LEUVEN);
+			profile = InstitutionProfile.KU_LEUVEN;
+		}
+		LoginManager.getInstance().setProfile(profile);
+	}
+
+	/**
+	 * A step of an import, run on the disk thread.
+	 */
+	private interface ImportStep {
+
+		/**
+		 * @throws IllegalArgumentException	When the profile is not valid.
+		 */
+		public void run() throws IOException;
+	}
+
+	/**
+	 * Runs the given step on the disk thread and reports its errors to the
+	 * given callback.
+	 */
+	private void runImportStep(final ImportCallback callback, final ImportStep step) {
+		FetchEngine.getInstance().runOnDiskThread(new Runnable() {
+			public void run() {
+				try {
+					step.run();
+				} catch (final IOException e) {
+					FetchEngine.getInstance().runOnMainThread(new Runnable() {
+						public void run() {
+							callback.onIOException(e);
+						}
+					});
+				} catch (final IllegalArgumentException e) {
+					FetchEngine.getInstance().runOnMainThread(new Runnable() {
+						public void run() {
+							callback.onInvalidProfile(e.getMessage());
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads and checks the profile at the given URI.
+	 *
+	 * @throws IllegalArgumentException	When the profile is not valid.
+	 */
+	private ProfileImport readProfile(Uri uri) throws IOException {
+		byte[] contents;
+		InputStream in = resolver.openInputStream(uri);
+		if(in == null) {
+			throw new IOException("Could not open " + uri);
+		}
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte[] chunk = new byte[4096];
+			int read;
+			while((read = in.read(chunk)) != -1) {
+				buffer.write(chunk, 0, read);
+				if(buffer.size() > MAX_IMPORT_SIZE) {
+					throw new IllegalArgumentException("Not a profile, the file is too large");
+				}
+			}
+			contents = buffer.toByteArray();
+		} finally {
+			in.close();
+		}
+		InstitutionProfile profile = InstitutionProfile.load(new ByteArrayInputStream(contents));
+		checkNotBuiltIn(profile);
+		return new ProfileImport(profile, contents);
+	}
+
+	/**
+	 * Stores the given profile in the directory. Writes to a temporary file
+	 * first, so the observer only sees the complete profile.
+	 */
+	private void storeProfile(ProfileImport profileImport) throws IOException {
+		// the id is chosen by whoever wrote the profile: keep it in the directory
+		String fileName = profileImport.getProfile().getId().replaceAll("[^A-Za-z0-9_.-]", "_") + SUFFIX;
+		File temp = new File(directory, fileName + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(profileImport.contents);
+		} finally {
+			out.close();
+		}
+		if(!temp.renameTo(new File(directory, fileName))) {
+			temp.delete();
+			throw new IOException("Could not store " + fileName);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException	When the given profile takes the id of
+	 * 									a built-in profile.
+	 */
+	private static void checkNotBuiltIn(InstitutionProfile profile) {
+		if(builtIn().containsKey(profile.getId())) {
+			throw new IllegalArgumentException("The id " + profile.getId() + " belongs to a built-in profile");
+		}
+	}
+
+	/**
+	 * Reads the profiles in the directory. A file that cannot be read, is
+	 * not a valid profile or takes the id of a built-in profile is skipped.
+	 */
+	private Map<String, InstitutionProfile> load() {
+		Map<String, InstitutionProfile> result = builtIn();
+		File[] files = directory.listFiles();
+		if(files == null) {
+			return result;
+		}
+		Arrays.sort(files);
+		for(File file: files) {
+			if(!file.getName().endsWith(SUFFIX)) {
+				continue;
+			}
+			try {
+				InputStream in = new BufferedInputStream(new FileInputStream(file));
+				try {
+					InstitutionProfile profile = InstitutionProfile.load(in);
+					checkNotBuiltIn(profile);
+					result.put(profile.getId(), profile);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Could not read profile " + file.getName() + ": " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				Log.w(TAG, "Invalid profile " + file.getName() + ": " + e.getMessage());
+			}
+		}
+		return result;
+	}
+
+	private static Map<String, InstitutionProfile> builtIn() {
+		Map<String, InstitutionProfile> result = new LinkedHashMap<String, InstitutionProfile>();
+		result.put(InstitutionProfile.KU_LEUVEN.getId(), InstitutionProfile.KU_LEUVEN);
+		return result;
+	}
+
+}
@@ -0,0 +1,76 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The platform of the login core on a plain JVM, e.g. in the daemon or in the
+ * benchmarks: a thread of its own stands in for the main thread and the log
+ * is written to the given stream.
+ *
+ * @author maartend
+ *
+ */
+public class JvmPlatform extends Platform {
+
+	private final ExecutorService mainThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "main-loop");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final PrintStream out;
+	private final boolean verbose;
+	private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	/**
+	 * @param verbose	Whether info messages are logged, as opposed to only
+	 * 					warnings and errors.
+	 */
+	public JvmPlatform(PrintStream out, boolean verbose) {
+		this.out = out;
+		this.verbose = verbose;
+	}
+
+	@Override
+	public void runOnMainThread(Runnable task) {
+		mainThread.execute(task);
+	}
+
+	/**
+	 * Does not count the time the machine is suspended, which does not
+	 * matter on the machines that run a JVM for logging in.
+	 */
+	@Override
+	public long elapsedRealtime() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	@Override
+	public void info(String tag, String message) {
+		if(verbose) {
+			log('I', tag, message);
+		}
+	}
+
+	@Override
+	public void warn(String tag, String message) {
+		log('W', tag, message);
+	}
+
+	@Override
+	public void error(String tag, String message) {
+		log('E', tag, message);
+	}
+
+	private synchronized void log(char level, String tag, String message) {
+		out.println(format.format(new Date()) + " " + level + "/" + tag + ": " + message);
+	}
+
+}
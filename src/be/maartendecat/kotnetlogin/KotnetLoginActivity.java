@@ -1,27 +1,48 @@
 package be.maartendecat.kotnetlogin;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.ProgressDialog;
+import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.NetworkInfo.State;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.ViewTreeObserver;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 import be.maartendecat.kotnetlogin.AccountManager.AccountDataListener;
+import be.maartendecat.kotnetlogin.InstitutionProfiles.ImportCallback;
+import be.maartendecat.kotnetlogin.InstitutionProfiles.ProfileImport;
 import be.maartendecat.kotnetlogin.LoginManager.LoginProcedureListener;
+import be.maartendecat.kotnetlogin.Logger.ExportCallback;
 
 public class KotnetLoginActivity extends Activity implements AccountDataListener, LoginProcedureListener {
 	
+	private static final String TAG = "KotnetLoginActivity";
+	
+	private static final String EVENT_LOG_FILE = "events.klog";
+	
+	private static final int REQUEST_IMPORT_PROFILE = 1;
+	
 	/************************************
 	 * INSTANCE FIELDS
 	 ************************************/
@@ -52,6 +73,26 @@ public class KotnetLoginActivity extends Activity implements AccountDataListener
 	 */
 	private ProgressDialog pd;
 	
+	/**
+	 * When this activity was created, to time the first frame.
+	 */
+	private long createdAt;
+	
+	/**
+	 * Prefetches the login page when Wi-Fi connects (if enabled).
+	 */
+	private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			NetworkInfo info = (NetworkInfo) intent.getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO);
+			if(info != null && info.getType() == ConnectivityManager.TYPE_WIFI && info.isConnected()) {
+				// a form fetched on another network is of no use
+				lm.discardPrefetchedForm();
+				prefetchIfEnabled();
+			}
+		}
+	};
+	
     /************************************
      * GENERAL ACTIVITY FUNCTIONALITY
      ************************************/  
@@ -59,11 +100,14 @@ public class KotnetLoginActivity extends Activity implements AccountDataListener
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState); 
+        createdAt = SystemClock.uptimeMillis();
         
 		///////////////////////////////
 		// INITIALIZE DATA
 		///////////////////////////////
         
+        // only what is needed to draw the button: the account details are
+        // loaded in the background, everything else waits for the first frame
         AccountManager.initialize(this);
         am = AccountManager.getInstance();
         am.registerAccountDataListener(this);
@@ -75,17 +119,63 @@ public class KotnetLoginActivity extends Activity implements AccountDataListener
         ///////////////////////////////
         setContentView(R.layout.main);
         
-        if(am.isUsernameSet() && am.isPasswordSet()) {
-        	showLoginBtn(am.getUsername());
-        } else {
-        	final LinearLayout layout = (LinearLayout) findViewById(R.id.wholeScreen);
-        	infoTxt = new TextView(this);
-        	infoTxt.setText("In order to log in, please specify your account details in the Preferences menu first.");
-        	layout.addView(infoTxt);
-        	//openOptionsMenu();
-        }
+        am.whenLoaded(new Runnable() {
+        	public void run() {
+        		showAccountViews();
+        	}
+        });
         
-        checkConnection();
+        getWindow().getDecorView().getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+        	public boolean onPreDraw() {
+        		getWindow().getDecorView().getViewTreeObserver().removeOnPreDrawListener(this);
+        		Log.i(TAG, "First frame after " + (SystemClock.uptimeMillis() - createdAt) + " ms");
+        		// runs after this frame is drawn
+        		getWindow().getDecorView().post(new Runnable() {
+        			public void run() {
+        				onFirstFrameDrawn();
+        			}
+        		});
+        		return true;
+        	}
+        });
+    }
+    
+    /**
+     * Initializes everything that is not needed to draw the first frame.
+     */
+    private void onFirstFrameDrawn() {
+    	InstitutionProfiles.initialize(this);
+    	SessionRenewalScheduler.initialize(this);
+    	checkConnection();
+    }
+    
+    @Override
+    protected void onResume() {
+    	super.onResume();
+    	am.whenLoaded(new Runnable() {
+    		public void run() {
+    			prefetchIfEnabled();
+    		}
+    	});
+    	registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+    
+    @Override
+    protected void onPause() {
+    	super.onPause();
+    	unregisterReceiver(connectivityReceiver);
+    }
+    
+    @Override
+    protected void onDestroy() {
+    	super.onDestroy();
+    	// an automatic login must not show its progress on a dead activity,
+    	// and a new activity is created on every configuration change
+    	lm.unregisterLoginProcedureListener(this);
+    	am.unregisterAccountDataListener(this);
+    	if(loginBtn != null) {
+    		am.unregisterAccountDataListener(loginBtn);
+    	}
     }
     
     /**
@@ -104,16 +194,105 @@ public class KotnetLoginActivity extends Activity implements AccountDataListener
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
     	switch (item.getItemId()) {
-	    	// We have only one menu option for now
 	    	case R.id.preferences:
 	    		// Launch Preference activity
 	    		Intent i = new Intent(this, MyPreferencesActivity.class);
 	    		startActivity(i);
 	    		break;
+	    	case R.id.importProfile:
+	    		pickProfile();
+	    		break;
+	    	case R.id.sendEventLog:
+	    		sendEventLog();
+	    		break;
     	}
     	return true;
     }
     
+    /**
+     * Lets the user pick a profile of an institution to import, e.g. one 
+     * that was downloaded or received by mail.
+     */
+    private void pickProfile() {
+    	Intent pick = new Intent(Intent.ACTION_GET_CONTENT);
+    	pick.setType("*/*");
+    	pick.addCategory(Intent.CATEGORY_OPENABLE);
+    	try {
+    		startActivityForResult(Intent.createChooser(pick, "Import profile"), REQUEST_IMPORT_PROFILE);
+    	} catch (ActivityNotFoundException e) {
+    		Toast.makeText(this, "No app available to pick a file with.", Toast.LENGTH_LONG).show();
+    	}
+    }
+    
+    /**
+     * Called when the user picked a file: imports the profile in it, once 
+     * the user confirmed where it sends the username and password to.
+     */
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+    	if(requestCode != REQUEST_IMPORT_PROFILE || resultCode != RESULT_OK || data == null || data.getData() == null) {
+    		return;
+    	}
+    	InstitutionProfiles.getInstance().readInBackground(data.getData(), new ImportCallback() {
+			
+			public void onRead(final ProfileImport profileImport) {
+				final ImportCallback callback = this;
+				InstitutionProfile profile = profileImport.getProfile();
+				new AlertDialog.Builder(KotnetLoginActivity.this)
+					.setTitle("Import profile")
+					.setMessage("Logging in with \"" + profile.getName() + "\" sends your username and password to " 
+							+ profile.getLoginHost() + ". Only import profiles from people you trust.")
+					.setPositiveButton("Import", new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							InstitutionProfiles.getInstance().storeInBackground(profileImport, callback);
+						}
+					})
+					.setNegativeButton("Cancel", null)
+					.show();
+			}
+			
+			public void onImported(InstitutionProfile profile) {
+				Toast.makeText(KotnetLoginActivity.this, "Imported " + profile.getName() + ", choose it in the Preferences.", Toast.LENGTH_LONG).show();
+			}
+			
+			public void onInvalidProfile(String description) {
+				Toast.makeText(KotnetLoginActivity.this, "Not a valid profile: " + description, Toast.LENGTH_LONG).show();
+			}
+			
+			public void onIOException(IOException e) {
+				Log.w(TAG, "Could not import the profile: " + e.getMessage());
+				Toast.makeText(KotnetLoginActivity.this, "Could not import the profile.", Toast.LENGTH_LONG).show();
+			}
+		});
+    }
+    
+    /**
+     * Exports the event log of the logins and lets the user send it, e.g. 
+     * attached to a bug report. The export is stored with the external cache 
+     * files, so other apps can read it.
+     */
+    private void sendEventLog() {
+    	File dir = getExternalCacheDir();
+    	if(dir == null) {
+    		Toast.makeText(this, "Cannot export the event log without external storage.", Toast.LENGTH_LONG).show();
+    		return;
+    	}
+    	Logger.getInstance().exportInBackground(new File(dir, EVENT_LOG_FILE), new ExportCallback() {
+			
+			public void onExported(File file) {
+				Intent send = new Intent(Intent.ACTION_SEND);
+				send.setType("application/octet-stream");
+				send.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+				startActivity(Intent.createChooser(send, "Send event log"));
+			}
+			
+			public void onIOException(IOException e) {
+				Log.w(TAG, "Could not export the event log: " + e.getMessage());
+				Toast.makeText(KotnetLoginActivity.this, "Could not export the event log.", Toast.LENGTH_LONG).show();
+			}
+		});
+    }
+    
     /**
      * Called when the login btn is pressed.
      */
@@ -160,21 +339,21 @@ public class KotnetLoginActivity extends Activity implements AccountDataListener
 	}
 
 	public void onNewStageReached(String description) {
-		pd.setMessage(description);
+		showProgress(description);
 	}
 
 	public void onProcedureError(String description) {
-		pd.setMessage("Error: " + description);
+		showProgress("Error: " + description);
 		dismissProgressDialog(3000);
 	}
 
 	public void onProcedureSuccess() {
-		pd.setMessage("Login successful");
+		showProgress("Login successful");
 		dismissProgressDialog(1000);
 	}
 
 	public void onProcedureFailure(String description) {
-		pd.setMessage("Login failed: " + description);
+		showProgress("Login failed: " + description);
 		dismissProgressDialog(3000);
 	}
 	
@@ -182,6 +361,26 @@ public class KotnetLoginActivity extends Activity implements AccountDataListener
      * HELPER METHODS
      ************************************/  
     
+    /**
+     * Show the login button, or the info text if the user has not set his
+     * account details yet.
+     */
+    private void showAccountViews() {
+    	if(loginBtn != null || infoTxt != null) {
+    		// already shown by an account data listener method
+    		return;
+    	}
+        if(am.isUsernameSet() && am.isPasswordSet()) {
+        	showLoginBtn(am.getUsername());
+        } else {
+        	final LinearLayout layout = (LinearLayout) findViewById(R.id.wholeScreen);
+        	infoTxt = new TextView(this);
+        	infoTxt.setText("In order to log in, please specify your account details in the Preferences menu first.");
+        	layout.addView(infoTxt);
+        	//openOptionsMenu();
+        }
+    }
+    
     /**
      * Show the login button on screen.
      */
@@ -205,15 +404,42 @@ public class KotnetLoginActivity extends Activity implements AccountDataListener
     	}
     }
     
+    /**
+     * Prefetch the login page if the user enabled this and can log in.
+     */
+    private void prefetchIfEnabled() {
+    	boolean enabled = PreferenceManager.getDefaultSharedPreferences(this).getBoolean("prefetch", false);
+    	if(enabled && am.isUsernameSet() && am.isPasswordSet()) {
+    		lm.prefetchLoginPage();
+    	}
+    }
+    
+    /**
+     * Shows the given message in the progress dialog. The dialog is created
+     * if there is none yet, e.g. because this activity was opened while a
+     * procedure started in the background (auto-login, widget, renewal) was
+     * running.
+     */
+    private void showProgress(String message) {
+    	if(pd == null) {
+    		pd = ProgressDialog.show(this, "", message, true);
+    	} else {
+    		pd.setMessage(message);
+    	}
+    }
+    
     /**
      * Dismisses the progress dialog after delay milliseconds.
      */
     private void dismissProgressDialog(long delay) {
+    	final ProgressDialog dialog = pd;
+    	// a next procedure gets a dialog of its own
+    	pd = null;
 		final Timer t = new Timer();
 		t.schedule(new TimerTask() {
 			@Override
 			public void run() {
-				pd.dismiss();
+				dialog.dismiss();
 			}
 		}, delay);
     }
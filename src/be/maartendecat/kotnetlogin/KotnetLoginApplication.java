@@ -0,0 +1,63 @@
+package be.maartendecat.kotnetlogin;
+
+import android.app.Application;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+
+/**
+ * Sets up the login core before any activity, service or receiver of the app
+ * uses it, starts recording the login metrics, and keeps the settings of the
+ * login core in line with the preferences.
+ *
+ * @author maartend
+ *
+ */
+public class KotnetLoginApplication extends Application implements OnSharedPreferenceChangeListener {
+
+	private static final String PREF_PROBE = "probe";
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		Platform.initialize(new AndroidPlatform());
+		// reading the preferences touches the disk: keep it off the main thread
+		FetchEngine.getInstance().runOnDiskThread(new Runnable() {
+			public void run() {
+				SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(KotnetLoginApplication.this);
+				// the application lives as long as the process: the listener is kept
+				prefs.registerOnSharedPreferenceChangeListener(KotnetLoginApplication.this);
+				final boolean probe = prefs.getBoolean(PREF_PROBE, true);
+				FetchEngine.getInstance().runOnMainThread(new Runnable() {
+					public void run() {
+						setProbeEnabled(probe);
+						LoginMetrics.initialize(KotnetLoginApplication.this);
+					}
+				});
+			}
+		});
+	}
+
+	/************************************
+	 * SHARED PREFERENCE LISTENER METHODS
+	 ************************************/
+
+	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+		if(PREF_PROBE.equals(key)) {
+			setProbeEnabled(sharedPreferences.getBoolean(PREF_PROBE, true));
+		}
+	}
+
+	/************************************
+	 * HELPER METHODS
+	 ************************************/
+
+	/**
+	 * Turns the connection probe before logging in on or off. Without the
+	 * probe, the login page is fetched every time.
+	 */
+	private void setProbeEnabled(boolean enabled) {
+		LoginManager.getInstance().setProbeUrl(enabled ? ConnectivityProbe.DEFAULT_PROBE_URL : null);
+	}
+
+}
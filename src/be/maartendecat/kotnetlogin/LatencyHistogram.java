@@ -0,0 +1,193 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import be.maartendecat.kotnetlogin.StageTimings.Stage;
+
+/**
+ * Histogram of the latencies of login procedures, per stage and in total.
+ *
+ * Latencies are counted in buckets that double in width: bucket 0 holds
+ * latencies under 1ms, bucket i latencies from 2^(i-1) up to 2^i ms. The last
+ * bucket also holds everything above. This is coarse, but small enough to be
+ * kept around forever.
+ *
+ * @author maartend
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 18;
+
+	/**
+	 * One row per stage, plus one for the total.
+	 */
+	private static final int TOTAL = Stage.values().length;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private final long[][] counts = new long[TOTAL + 1][BUCKETS];
+
+	/****************************
+	 * RECORDING
+	 ****************************/
+
+	/**
+	 * Records the stages and the total of the given procedure. Stages that did
+	 * not occur in the procedure (zero time) are not recorded.
+	 */
+	public synchronized void record(StageTimings timings) {
+		for(Stage stage: Stage.values()) {
+			long nanos = timings.getNanos(stage);
+			if(nanos > 0) {
+				counts[stage.ordinal()][bucketOf(nanos / 1000000L)]++;
+			}
+		}
+		counts[TOTAL][bucketOf(timings.getTotalMillis())]++;
+	}
+
+	public synchronized void clear() {
+		for(long[] row: counts) {
+			Arrays.fill(row, 0);
+		}
+	}
+
+	/****************************
+	 * QUERIES
+	 ****************************/
+
+	/**
+	 * Returns the number of procedures recorded.
+	 */
+	public synchronized long getCount() {
+		return count(TOTAL);
+	}
+
+	/**
+	 * Returns the number of procedures in which the given stage was recorded.
+	 */
+	public synchronized long getCount(Stage stage) {
+		return count(stage.ordinal());
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile (0-100) of the latency of
+	 * the given stage, in milliseconds. Returns -1 if nothing was recorded.
+	 */
+	public synchronized long getPercentile(Stage stage, double percentile) {
+		return percentile(stage.ordinal(), percentile);
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile (0-100) of the total
+	 * latency, in milliseconds. Returns -1 if nothing was recorded.
+	 */
+	public synchronized long getTotalPercentile(double percentile) {
+		return percentile(TOTAL, percentile);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder result = new StringBuilder(getCount() + " procedures, p50/p90 total " 
+				+ getTotalPercentile(50) + "/" + getTotalPercentile(90) + "ms");
+		for(Stage stage: Stage.values()) {
+			if(count(stage.ordinal()) > 0) {
+				result.append(", ").append(stage.name().toLowerCase()).append(' ')
+					.append(getPercentile(stage, 50)).append('/').append(getPercentile(stage, 90)).append("ms");
+			}
+		}
+		return result.toString();
+	}
+
+	/****************************
+	 * PERSISTENCE
+	 ****************************/
+
+	public synchronized void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(counts.length);
+		out.writeInt(BUCKETS);
+		for(long[] row: counts) {
+			for(long count: row) {
+				out.writeLong(count);
+			}
+		}
+	}
+
+	/**
+	 * Adds the counts written by {@link #writeTo(DataOutputStream)} to this
+	 * histogram. Rows of unknown stages are skipped.
+	 */
+	public synchronized void readFrom(DataInputStream in) throws IOException {
+		int version = in.readInt();
+		if(version != FORMAT_VERSION) {
+			throw new IOException("Unknown histogram format: " + version);
+		}
+		int rows = in.readInt();
+		int buckets = in.readInt();
+		long[][] read = new long[rows][buckets];
+		for(int row = 0; row < rows; row++) {
+			for(int bucket = 0; bucket < buckets; bucket++) {
+				read[row][bucket] = in.readLong();
+			}
+		}
+		// the last row is always the total, even if stages were added since
+		for(int row = 0; row < rows; row++) {
+			int target = (row == rows - 1) ? TOTAL : row;
+			if(row != rows - 1 && row >= TOTAL) {
+				continue;
+			}
+			for(int bucket = 0; bucket < buckets; bucket++) {
+				counts[target][Math.min(bucket, BUCKETS - 1)] += read[row][bucket];
+			}
+		}
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	private static int bucketOf(long millis) {
+		int bucket = 0;
+		while(millis > 0 && bucket < BUCKETS - 1) {
+			millis >>= 1;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Returns the upper bound of the given bucket, in milliseconds.
+	 */
+	private static long upperBoundOf(int bucket) {
+		return 1L << bucket;
+	}
+
+	private long count(int row) {
+		long result = 0;
+		for(long count: counts[row]) {
+			result += count;
+		}
+		return result;
+	}
+
+	private long percentile(int row, double percentile) {
+		long total = count(row);
+		if(total == 0) {
+			return -1;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts[row][bucket];
+			if(seen >= Math.max(rank, 1)) {
+				return upperBoundOf(bucket);
+			}
+		}
+		return upperBoundOf(BUCKETS - 1);
+	}
+
+}
@@ -0,0 +1,112 @@
+package be.maartendecat.kotnetlogin;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The listeners of a singleton. Listeners are held through weak references,
+ * so a listener that is not unregistered (e.g. an activity destroyed on a
+ * configuration change) does not leak: it is dropped once it is collected.
+ * Listeners therefore have to be referenced elsewhere as long as they should
+ * be notified, which activities, views, services and singletons are.
+ *
+ * Iterating works on a snapshot, so listeners can be notified from any
+ * thread while others (un)register, also from within a notification.
+ *
+ * @author maartend
+ *
+ */
+public class ListenerRegistry<L> implements Iterable<L> {
+
+	private final CopyOnWriteArrayList<WeakReference<L>> listeners = new CopyOnWriteArrayList<WeakReference<L>>();
+
+	/****************************
+	 * REGISTRATION
+	 ****************************/
+
+	/**
+	 * Registers the given listener. Nothing is changed if it was registered
+	 * already.
+	 */
+	public synchronized void register(L listener) {
+		if(indexOf(listener) == -1) {
+			listeners.add(new WeakReference<L>(listener));
+		}
+	}
+
+	/**
+	 * Unregisters the given listener. Nothing is changed if the listener was
+	 * not registered in the first place.
+	 */
+	public synchronized void unregister(L listener) {
+		int index = indexOf(listener);
+		if(index != -1) {
+			listeners.remove(index);
+		}
+	}
+
+	/**
+	 * Returns the number of registered listeners that were not collected.
+	 */
+	public int size() {
+		int size = 0;
+		for(WeakReference<L> reference: listeners) {
+			if(reference.get() != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	/****************************
+	 * ITERATION
+	 ****************************/
+
+	/**
+	 * Returns an iterator over the listeners registered now. Listeners that
+	 * were collected are skipped and dropped.
+	 */
+	public Iterator<L> iterator() {
+		List<L> snapshot = new ArrayList<L>(listeners.size());
+		boolean collected = false;
+		for(WeakReference<L> reference: listeners) {
+			L listener = reference.get();
+			if(listener == null) {
+				collected = true;
+			} else {
+				snapshot.add(listener);
+			}
+		}
+		if(collected) {
+			prune();
+		}
+		return snapshot.iterator();
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	private int indexOf(L listener) {
+		for(int i = 0; i < listeners.size(); i++) {
+			if(listeners.get(i).get() == listener) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private synchronized void prune() {
+		List<WeakReference<L>> collected = new ArrayList<WeakReference<L>>();
+		for(WeakReference<L> reference: listeners) {
+			if(reference.get() == null) {
+				collected.add(reference);
+			}
+		}
+		listeners.removeAll(collected);
+	}
+
+}
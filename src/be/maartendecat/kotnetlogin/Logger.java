@@ -1,22 +1,378 @@
 package be.maartendecat.kotnetlogin;
 
-import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * Class used for logging during the login procedure.
- * 
+ * Class used for logging during the login procedure: keeps the last CAPACITY
+ * events in memory, so they can be exported for a bug report (see
+ * {@link #exportInBackground(File, ExportCallback)}).
+ *
+ * An event is a timestamp, an {@link Event}, a code and two numbers, no text:
+ * logging one does not build strings, does not allocate and does not write
+ * to logcat, so it can stay enabled during every login. The events are kept
+ * in a preallocated ring buffer that any thread can log to without locking;
+ * once it is full, the oldest events are overwritten.
+ *
  * @author maartend
  *
  */
 public class Logger {
-	
-	private static final String TAG = "Logger";
 
-	public Logger() {
-		
+	/**
+	 * The number of events kept, a power of two.
+	 */
+	private static final int CAPACITY = 1024;
+
+	/**
+	 * The layout of a slot in the buffer: the sequence number of the event in
+	 * it, followed by its fields.
+	 */
+	private static final int SEQUENCE = 0;
+	private static final int TIME = 1;
+	private static final int HEADER = 2;
+	private static final int A = 3;
+	private static final int B = 4;
+	private static final int SLOT_SIZE = 5;
+
+	/**
+	 * The sequence number of a slot that is being written.
+	 */
+	private static final long WRITING = -1;
+
+	/**
+	 * Identifies an export and its version.
+	 */
+	private static final int MAGIC = 0x4b4c4f47; // "KLOG"
+	private static final int VERSION = 1;
+
+	/****************************
+	 * EVENTS
+	 ****************************/
+
+	/**
+	 * The events of a login procedure. Unless noted otherwise, the code of an
+	 * event is the id of the session it belongs to (see
+	 * {@link LoginSession#getId()}) and its numbers are 0.
+	 */
+	public enum Event {
+		/**
+		 * A procedure started. A: 1 if it renews a session.
+		 */
+		STARTED,
+		/**
+		 * A request attached to the running procedure.
+		 */
+		ATTACHED,
+		/**
+		 * The procedure waits for a slot. A: the number of sessions waiting.
+		 */
+		WAITING,
+		/**
+		 * The procedure was cancelled.
+		 */
+		CANCELLED,
+		/**
+		 * The connection was probed. A: the {@link ConnectivityProbe.Status}
+		 * (ordinal).
+		 */
+		PROBED,
+		/**
+		 * The login page is being prefetched.
+		 */
+		PREFETCH_STARTED,
+		/**
+		 * Prefetching the login page failed.
+		 */
+		PREFETCH_FAILED,
+		/**
+		 * The prefetched login form is submitted.
+		 */
+		PREFETCHED_FORM_USED,
+		/**
+		 * The cached login form is submitted, without fetching the login page.
+		 */
+		CACHED_FORM_USED,
+		/**
+		 * The login page was fetched.
+		 */
+		LOGIN_PAGE_FETCHED,
+		/**
+		 * A login form is submitted. A: the number of hidden inputs, B: the
+		 * time spent building the request (in nanoseconds).
+		 */
+		FORM_SUBMITTED,
+		/**
+		 * The cached login form was accepted, or rejected. A: the hits of the
+		 * form cache, B: its misses.
+		 */
+		CACHED_FORM_ACCEPTED,
+		CACHED_FORM_REJECTED,
+		/**
+		 * The result page showed the login form again. A: 1 if the prefetched
+		 * form was submitted.
+		 */
+		FORM_REJECTED,
+		/**
+		 * The procedure ended in an error. A: 1 if it timed out.
+		 */
+		ERROR,
+		/**
+		 * Netlogin refused the login.
+		 */
+		FAILED,
+		/**
+		 * The device is online. A: the {@link ResultClassifier.Outcome} of the
+		 * result page (ordinal), -1 if the device was online already.
+		 */
+		SUCCEEDED,
+		/**
+		 * A procedure gave up its slot. A: the sessions finished per second
+		 * (times 1000).
+		 */
+		FINISHED,
+		/**
+		 * The timings of a procedure were recorded. Code: the number of
+		 * requests, A: the total time (in milliseconds), B: the bytes
+		 * received.
+		 */
+		TIMED;
+	}
+
+	/************************************
+	 * STATIC SINGLETON STUFF
+	 ************************************/
+
+	private static final Logger instance = new Logger(CAPACITY);
+
+	public static Logger getInstance() {
+		return instance;
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final int mask;
+
+	/**
+	 * The slots of the buffer, SLOT_SIZE longs each.
+	 */
+	private final AtomicLongArray slots;
+
+	/**
+	 * The sequence number of the next event.
+	 */
+	private final AtomicLong next = new AtomicLong();
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	Logger(int capacity) {
+		if(Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("The capacity must be a power of two: " + capacity);
+		}
+		this.mask = capacity - 1;
+		this.slots = new AtomicLongArray(capacity * SLOT_SIZE);
+		for(int i = 0; i < capacity; i++) {
+			slots.set(i * SLOT_SIZE + SEQUENCE, WRITING);
+		}
+	}
+
+	/****************************
+	 * LOGGING
+	 ****************************/
+
+	public void log(Event event, int code) {
+		log(event, code, 0, 0);
 	}
-	
-	public void startNewSession(String username) {
-		Log.i(TAG, "Starting new session for " + username);
+
+	public void log(Event event, int code, long a) {
+		log(event, code, a, 0);
+	}
+
+	/**
+	 * Logs the given event. Can be called from any thread.
+	 */
+	public void log(Event event, int code, long a, long b) {
+		long sequence = next.getAndIncrement();
+		int slot = (int) (sequence & mask) * SLOT_SIZE;
+		// readers skip the slot until the event is written completely
+		slots.set(slot + SEQUENCE, WRITING);
+		slots.lazySet(slot + TIME, System.currentTimeMillis());
+		slots.lazySet(slot + HEADER, ((long) event.ordinal() << 32) | (code & 0xffffffffL));
+		slots.lazySet(slot + A, a);
+		slots.lazySet(slot + B, b);
+		slots.lazySet(slot + SEQUENCE, sequence);
 	}
+
+	/**
+	 * Returns the number of events logged so far, including the overwritten
+	 * ones.
+	 */
+	public long getCount() {
+		return next.get();
+	}
+
+	/****************************
+	 * EXPORT
+	 ****************************/
+
+	/**
+	 * Called when an export finished (in the main/UI thread).
+	 */
+	public interface ExportCallback {
+
+		public void onExported(File file);
+
+		public void onIOException(IOException e);
+	}
+
+	/**
+	 * Writes the events in the buffer to the given file, in the background.
+	 * Logging goes on in the meantime. See {@link #writeTo(DataOutputStream)}
+	 * for the format.
+	 */
+	public void exportInBackground(final File file, final ExportCallback callback) {
+		Runnable export = new Runnable() {
+			public void run() {
+				IOException error = null;
+				try {
+					export(file);
+				} catch (IOException e) {
+					error = e;
+				}
+				final IOException result = error;
+				FetchEngine.getInstance().runOnMainThread(new Runnable() {
+					public void run() {
+						if(result == null) {
+							callback.onExported(file);
+						} else {
+							callback.onIOException(result);
+						}
+					}
+				});
+			}
+		};
+		FetchEngine.getInstance().runOnDiskThread(export);
+	}
+
+	/**
+	 * Writes the events in the buffer, oldest first:
+	 * <ul>
+	 * <li>MAGIC and VERSION (int, byte)</li>
+	 * <li>the names of the events (short count, UTF each), so the ordinals
+	 * can be decoded by another version of the app</li>
+	 * <li>the number of events logged before the first written one (long)</li>
+	 * <li>the number of events written (int), followed by the events: the
+	 * time (long, System.currentTimeMillis()), the event (byte), the code
+	 * (int) and both numbers (long)</li>
+	 * </ul>
+	 * Events that are overwritten while writing are left out.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		long end = next.get();
+		long start = Math.max(0, end - (mask + 1));
+		// take a snapshot first: the events go on in the meantime
+		int size = (int) (end - start);
+		long[] times = new long[size];
+		long[] headers = new long[size];
+		long[] as = new long[size];
+		long[] bs = new long[size];
+		int count = 0;
+		long first = end;
+		for(long sequence = start; sequence < end; sequence++) {
+			int slot = (int) (sequence & mask) * SLOT_SIZE;
+			if(slots.get(slot + SEQUENCE) != sequence) {
+				continue;
+			}
+			times[count] = slots.get(slot + TIME);
+			headers[count] = slots.get(slot + HEADER);
+			as[count] = slots.get(slot + A);
+			bs[count] = slots.get(slot + B);
+			// the fields are only consistent if the slot was not reused
+			if(slots.get(slot + SEQUENCE) == sequence) {
+				first = Math.min(first, sequence);
+				count++;
+			}
+		}
+
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		Event[] events = Event.values();
+		out.writeShort(events.length);
+		for(Event event: events) {
+			out.writeUTF(event.name());
+		}
+		out.writeLong(first);
+		out.writeInt(count);
+		for(int i = 0; i < count; i++) {
+			out.writeLong(times[i]);
+			out.writeByte((int) (headers[i] >>> 32));
+			out.writeInt((int) headers[i]);
+			out.writeLong(as[i]);
+			out.writeLong(bs[i]);
+		}
+	}
+
+	/**
+	 * Turns an export back into text, one event per line.
+	 */
+	public static void decode(DataInputStream in, Appendable out) throws IOException {
+		if(in.readInt() != MAGIC) {
+			throw new IOException("Not an event log");
+		}
+		int version = in.readUnsignedByte();
+		if(version != VERSION) {
+			throw new IOException("Unsupported version " + version);
+		}
+		String[] names = new String[in.readUnsignedShort()];
+		for(int i = 0; i < names.length; i++) {
+			names[i] = in.readUTF();
+		}
+		long first = in.readLong();
+		int count = in.readInt();
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		out.append(first + " events before these\n");
+		for(int i = 0; i < count; i++) {
+			long time = in.readLong();
+			int event = in.readUnsignedByte();
+			int code = in.readInt();
+			long a = in.readLong();
+			long b = in.readLong();
+			String name = (event < names.length) ? names[event] : "#" + event;
+			out.append(format.format(new Date(time)) + " " + name + " " + code + " " + a + " " + b + "\n");
+		}
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Writes to a temporary file first, so a failed export does not leave a
+	 * partial one behind.
+	 */
+	private void export(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			writeTo(out);
+		} finally {
+			out.close();
+		}
+		if(!temp.renameTo(file)) {
+			throw new IOException("Could not rename " + temp);
+		}
+	}
+
 }
@@ -0,0 +1,131 @@
+package be.maartendecat.kotnetlogin;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Collector;
+import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+
+/**
+ * The relevant contents of the netlogin form: the target of the form, its
+ * hidden inputs and the name of the password field (this changes for every
+ * request, but always starts with "pwd").
+ *
+ * @author maartend
+ *
+ */
+public class LoginForm {
+
+	/**
+	 * The selectors of the fallback, parsed once.
+	 */
+	private static final Evaluator NETLOGIN_FORM = QueryParser.parse("form[name=netlogin]");
+	private static final Evaluator HIDDEN_INPUTS = QueryParser.parse("input[type=hidden]");
+	private static final Evaluator PASSWORD_FIELDS = QueryParser.parse("input[type=password]");
+
+	private final String action;
+	private final Map<String, String> hiddenInputs;
+	private final String passwordField;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public LoginForm(String action, Map<String, String> hiddenInputs, String passwordField) {
+		this.action = action;
+		this.hiddenInputs = Collections.unmodifiableMap(new LinkedHashMap<String, String>(hiddenInputs));
+		this.passwordField = passwordField;
+	}
+
+	/****************************
+	 * GETTERS
+	 ****************************/
+
+	/**
+	 * Returns the action attribute of the form, as found in the page.
+	 */
+	public String getAction() {
+		return action;
+	}
+
+	/**
+	 * Returns the absolute URL the form should be submitted to: the action
+	 * resolved against the URL of the login page.
+	 */
+	public String getTarget(String loginPageUrl) {
+		try {
+			return new URL(new URL(loginPageUrl), action).toExternalForm();
+		} catch (MalformedURLException e) {
+			return action;
+		}
+	}
+
+	/**
+	 * Returns the names and values of the hidden inputs of the form,
+	 * in document order.
+	 */
+	public Map<String, String> getHiddenInputs() {
+		return hiddenInputs;
+	}
+
+	/**
+	 * Returns the name of the password field.
+	 */
+	public String getPasswordField() {
+		return passwordField;
+	}
+
+	/****************************
+	 * JSOUP FALLBACK
+	 ****************************/
+
+	/**
+	 * Extracts the login form from a fully parsed login page. This is the slow
+	 * path, used when the streaming extractor could not find the form.
+	 *
+	 * @throws LoginFormException	When the page does not contain exactly one
+	 * 								netlogin form with exactly one password field.
+	 */
+	public static LoginForm fromDocument(Document loginPage) throws LoginFormException {
+		return fromDocument(loginPage, NETLOGIN_FORM, "netlogin");
+	}
+
+	/**
+	 * Extracts the login form selected by the given selector, for the form with
+	 * the given name, from a fully parsed login page.
+	 *
+	 * @throws LoginFormException	When the page does not contain exactly one
+	 * 								such form with exactly one password field.
+	 */
+	static LoginForm fromDocument(Document loginPage, Evaluator formSelector, String formName) throws LoginFormException {
+		Elements forms = Collector.collect(formSelector, loginPage);
+		if(forms.size() == 0) {
+			throw new LoginFormException("No forms with name \"" + formName + "\" in the page.");
+		} else if (forms.size() > 1) {
+			throw new LoginFormException("Multiple forms with name \"" + formName + "\" in the page.");
+		}
+		Element form = forms.first();
+
+		// hidden inputs
+		Map<String, String> hiddenInputs = new LinkedHashMap<String, String>();
+		for(Element input: Collector.collect(HIDDEN_INPUTS, form)) {
+			hiddenInputs.put(input.attr("name"), input.attr("value"));
+		}
+		// password field
+		Elements passwordFields = Collector.collect(PASSWORD_FIELDS, form);
+		if(passwordFields.size() == 0) {
+			throw new LoginFormException("No password fields in the form.");
+		} else if (passwordFields.size() > 1) {
+			throw new LoginFormException("Multiple password fields in the form.");
+		}
+		return new LoginForm(form.attr("action"), hiddenInputs, passwordFields.first().attr("name"));
+	}
+
+}
@@ -0,0 +1,166 @@
+package be.maartendecat.kotnetlogin;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the last login form that was fetched, used as a template for
+ * logging in without fetching the login page first (the "fast path").
+ *
+ * The template is the shape of the form: its target and the names of its
+ * hidden inputs. It is only used once the last STABLE_FETCHES fetched forms
+ * had the same shape. The name of the password field (Netlogin gives it a
+ * new name for every request) and the values of the hidden inputs are slots,
+ * filled in with those of the last fetched form. Hidden inputs whose value
+ * changed between two fetched forms are remembered as volatile; they do not
+ * rule out the fast path, whether the server accepts their last value is up
+ * to the counters below.
+ *
+ * The hits and misses of the fast path are counted: once more than
+ * MAX_MISS_RATE of the attempts were rejected, the fast path is given up on.
+ *
+ * @author maartend
+ *
+ */
+public class LoginFormCache {
+
+	/**
+	 * The number of identical forms in a row that must be fetched before the
+	 * template is used.
+	 */
+	private static final int STABLE_FETCHES = 3;
+
+	/**
+	 * The number of fast path misses in a row after which the fast path is
+	 * given up on.
+	 */
+	private static final int MAX_CONSECUTIVE_MISSES = 3;
+
+	/**
+	 * The fraction of rejected attempts after which the fast path is given up
+	 * on, once MIN_ATTEMPTS were made.
+	 */
+	private static final double MAX_MISS_RATE = 0.25;
+	private static final int MIN_ATTEMPTS = 4;
+
+	private LoginForm template;
+	private int stableFetches = 0;
+	private boolean stale = false;
+	private final Set<String> volatileFields = new HashSet<String>();
+
+	private int hits = 0;
+	private int misses = 0;
+	private int consecutiveMisses = 0;
+
+	/****************************
+	 * TEMPLATE
+	 ****************************/
+
+	/**
+	 * Updates the template with a freshly fetched login form.
+	 */
+	public synchronized void update(LoginForm form) {
+		if(template != null && isSameShape(template, form)) {
+			for(Map.Entry<String, String> input: form.getHiddenInputs().entrySet()) {
+				if(!input.getValue().equals(template.getHiddenInputs().get(input.getKey()))) {
+					volatileFields.add(input.getKey());
+				}
+			}
+			stableFetches++;
+		} else {
+			// the form changed altogether, start over
+			volatileFields.clear();
+			stableFetches = 1;
+		}
+		template = form;
+		stale = false;
+	}
+
+	/**
+	 * Returns the template to use for the fast path, with its slots filled in
+	 * with the last fetched values, or null if the fast path should not be
+	 * attempted.
+	 */
+	public synchronized LoginForm getFastPathTemplate() {
+		if(template == null || stale || stableFetches < STABLE_FETCHES
+				|| consecutiveMisses >= MAX_CONSECUTIVE_MISSES
+				|| (hits + misses >= MIN_ATTEMPTS && getMissRate() > MAX_MISS_RATE)) {
+			return null;
+		}
+		return template;
+	}
+
+	/**
+	 * Forgets the template, e.g. because the login page changed. The counters
+	 * are kept.
+	 */
+	public synchronized void clear() {
+		template = null;
+		stableFetches = 0;
+		stale = false;
+		volatileFields.clear();
+		consecutiveMisses = 0;
+	}
+
+	/**
+	 * Returns the names of the hidden inputs known to change between requests.
+	 */
+	public synchronized Set<String> getVolatileFields() {
+		return Collections.unmodifiableSet(new HashSet<String>(volatileFields));
+	}
+
+	/****************************
+	 * COUNTERS
+	 ****************************/
+
+	/**
+	 * Records that the server accepted a login using the template.
+	 */
+	public synchronized void recordHit() {
+		hits++;
+		consecutiveMisses = 0;
+	}
+
+	/**
+	 * Records that the server rejected a login using the template. The template
+	 * is not used again until it is updated with a freshly fetched form.
+	 */
+	public synchronized void recordMiss() {
+		misses++;
+		consecutiveMisses++;
+		stale = true;
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the fraction of fast path attempts the server rejected, 0 if
+	 * none were made.
+	 */
+	public synchronized double getMissRate() {
+		return (hits + misses == 0) ? 0 : (double) misses / (hits + misses);
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Returns whether the given forms have the same target and hidden inputs,
+	 * regardless of the values of the inputs and the name of the password
+	 * field.
+	 */
+	private static boolean isSameShape(LoginForm a, LoginForm b) {
+		return a.getAction().equals(b.getAction())
+				&& a.getHiddenInputs().keySet().equals(b.getHiddenInputs().keySet());
+	}
+
+}
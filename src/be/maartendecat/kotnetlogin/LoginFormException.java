@@ -0,0 +1,17 @@
+package be.maartendecat.kotnetlogin;
+
+/**
+ * Thrown when the login page does not contain a usable login form.
+ *
+ * @author maartend
+ *
+ */
+public class LoginFormException extends Exception {
+
+	private static final long serialVersionUID = -2911420786203329215L;
+
+	public LoginFormException(String description) {
+		super(description);
+	}
+
+}
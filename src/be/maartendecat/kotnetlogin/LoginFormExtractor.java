@@ -0,0 +1,365 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streaming extractor for the netlogin form. Tokenizes the login page as it is
+ * read and stops reading as soon as the form is closed, without building a DOM.
+ *
+ * This is not a full HTML parser: it only understands tags, attributes, comments
+ * and raw text elements (script, style), which is all that is needed to find the
+ * form. When the form cannot be found, {@link #extract()} returns null and the
+ * caller should fall back to {@link LoginForm#fromDocument}, using the text that
+ * has been read so far (see {@link #getConsumedText()}).
+ *
+ * @author maartend
+ *
+ */
+public class LoginFormExtractor {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private final Reader in;
+	private final String formName;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	/**
+	 * All text read from the reader, kept for the Jsoup fallback.
+	 */
+	private final StringBuilder consumed = new StringBuilder();
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public LoginFormExtractor(Reader in) {
+		this(in, "netlogin");
+	}
+
+	public LoginFormExtractor(Reader in, String formName) {
+		this.in = in;
+		this.formName = formName;
+	}
+
+	/****************************
+	 * EXTRACTION
+	 ****************************/
+
+	/**
+	 * Reads the page up to the end of the login form and returns the form.
+	 * Returns null if the page does not contain the form, or if the form does
+	 * not contain exactly one password field. In that case, the whole page has
+	 * been read.
+	 */
+	public LoginForm extract() throws IOException {
+		boolean inForm = false;
+		String action = null;
+		Map<String, String> hiddenInputs = new LinkedHashMap<String, String>();
+		String passwordField = null;
+		int nbPasswordFields = 0;
+
+		int c;
+		while((c = read()) != -1) {
+			if(c != '<') {
+				continue;
+			}
+			c = read();
+			if(c == '!') {
+				skipMarkupDeclaration();
+				continue;
+			}
+			boolean endTag = false;
+			if(c == '/') {
+				endTag = true;
+				c = read();
+			}
+			if(!isLetter(c)) {
+				// just a '<' in the text
+				unread(c);
+				continue;
+			}
+			String tag = readTagName(c);
+
+			if(endTag) {
+				skipTag();
+				if(inForm && tag.equals("form")) {
+					if(nbPasswordFields == 1) {
+						return new LoginForm(action, hiddenInputs, passwordField);
+					}
+					break;
+				}
+			} else if(tag.equals("form") || (inForm && tag.equals("input"))) {
+				Map<String, String> attributes = readAttributes();
+				if(tag.equals("form")) {
+					if(!inForm && formName.equalsIgnoreCase(attributes.get("name"))) {
+						inForm = true;
+						action = attr(attributes, "action");
+					}
+				} else {
+					String type = attr(attributes, "type");
+					if(type.equalsIgnoreCase("hidden")) {
+						hiddenInputs.put(attr(attributes, "name"), attr(attributes, "value"));
+					} else if(type.equalsIgnoreCase("password")) {
+						passwordField = attr(attributes, "name");
+						nbPasswordFields++;
+					}
+				}
+			} else if(tag.equals("script") || tag.equals("style")) {
+				skipTag();
+				skipRawText(tag);
+			} else {
+				skipTag();
+			}
+		}
+
+		// no usable form: read the rest of the page for the fallback
+		while(read() != -1) {
+			position = limit;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns all text read so far.
+	 */
+	public String getConsumedText() {
+		return consumed.toString();
+	}
+
+	/****************************
+	 * TOKENIZER
+	 ****************************/
+
+	private int read() throws IOException {
+		if(position == limit) {
+			limit = in.read(buffer, 0, BUFFER_SIZE);
+			if(limit <= 0) {
+				limit = 0;
+				position = 0;
+				return -1;
+			}
+			consumed.append(buffer, 0, limit);
+			position = 0;
+		}
+		return buffer[position++];
+	}
+
+	/**
+	 * Pushes back the last read character. Only valid directly after read().
+	 */
+	private void unread(int c) {
+		if(c != -1) {
+			position--;
+		}
+	}
+
+	private String readTagName(int first) throws IOException {
+		StringBuilder name = new StringBuilder();
+		int c = first;
+		while(c != -1 && !isWhitespace(c) && c != '>' && c != '/') {
+			name.append(Character.toLowerCase((char) c));
+			c = read();
+		}
+		unread(c);
+		return name.toString();
+	}
+
+	/**
+	 * Reads the attributes of a start tag up to and including the closing '>'.
+	 * Attribute names are lowercased, the first occurrence of an attribute wins.
+	 */
+	private Map<String, String> readAttributes() throws IOException {
+		Map<String, String> attributes = new HashMap<String, String>();
+		while(true) {
+			int c = read();
+			while(isWhitespace(c) || c == '/') {
+				c = read();
+			}
+			if(c == '>' || c == -1) {
+				return attributes;
+			}
+			StringBuilder name = new StringBuilder();
+			while(c != -1 && !isWhitespace(c) && c != '=' && c != '>' && c != '/') {
+				name.append(Character.toLowerCase((char) c));
+				c = read();
+			}
+			while(isWhitespace(c)) {
+				c = read();
+			}
+			String value = "";
+			if(c == '=') {
+				c = read();
+				while(isWhitespace(c)) {
+					c = read();
+				}
+				StringBuilder v = new StringBuilder();
+				if(c == '"' || c == '\'') {
+					int quote = c;
+					while((c = read()) != -1 && c != quote) {
+						v.append((char) c);
+					}
+				} else {
+					while(c != -1 && !isWhitespace(c) && c != '>') {
+						v.append((char) c);
+						c = read();
+					}
+					unread(c);
+				}
+				value = decodeEntities(v.toString());
+			} else {
+				unread(c);
+			}
+			if(!attributes.containsKey(name.toString())) {
+				attributes.put(name.toString(), value);
+			}
+		}
+	}
+
+	/**
+	 * Skips the rest of a tag, up to and including the closing '>'.
+	 */
+	private void skipTag() throws IOException {
+		int c;
+		int quote = -1;
+		while((c = read()) != -1) {
+			if(quote != -1) {
+				if(c == quote) {
+					quote = -1;
+				}
+			} else if(c == '"' || c == '\'') {
+				quote = c;
+			} else if(c == '>') {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Skips a comment or a declaration such as the doctype. The "<!" has already
+	 * been read.
+	 */
+	private void skipMarkupDeclaration() throws IOException {
+		int c = read();
+		if(c == '-') {
+			c = read();
+			if(c == '-') {
+				// comment: skip to "-->"
+				int dashes = 0;
+				while((c = read()) != -1) {
+					if(c == '>' && dashes >= 2) {
+						return;
+					}
+					dashes = (c == '-') ? dashes + 1 : 0;
+				}
+				return;
+			}
+		}
+		while(c != -1 && c != '>') {
+			c = read();
+		}
+	}
+
+	/**
+	 * Skips the contents of a raw text element up to and including its end tag.
+	 */
+	private void skipRawText(String tag) throws IOException {
+		int c;
+		while((c = read()) != -1) {
+			if(c != '<') {
+				continue;
+			}
+			c = read();
+			if(c != '/') {
+				unread(c);
+				continue;
+			}
+			c = read();
+			if(!isLetter(c)) {
+				unread(c);
+				continue;
+			}
+			if(readTagName(c).equals(tag)) {
+				skipTag();
+				return;
+			}
+		}
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	private static String attr(Map<String, String> attributes, String name) {
+		String value = attributes.get(name);
+		return value == null ? "" : value;
+	}
+
+	private static boolean isLetter(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+
+	/**
+	 * Decodes the character references that can be expected in attribute
+	 * values. Unknown references are left as is.
+	 */
+	static String decodeEntities(String value) {
+		int amp = value.indexOf('&');
+		if(amp == -1) {
+			return value;
+		}
+		StringBuilder result = new StringBuilder(value.length());
+		result.append(value, 0, amp);
+		int i = amp;
+		while(i < value.length()) {
+			char c = value.charAt(i);
+			int semicolon = value.indexOf(';', i);
+			if(c != '&' || semicolon == -1 || semicolon - i > 10) {
+				result.append(c);
+				i++;
+				continue;
+			}
+			String entity = value.substring(i + 1, semicolon);
+			String decoded = null;
+			if(entity.equals("amp")) {
+				decoded = "&";
+			} else if(entity.equals("lt")) {
+				decoded = "<";
+			} else if(entity.equals("gt")) {
+				decoded = ">";
+			} else if(entity.equals("quot")) {
+				decoded = "\"";
+			} else if(entity.equals("apos")) {
+				decoded = "'";
+			} else if(entity.startsWith("#")) {
+				try {
+					int code = (entity.startsWith("#x") || entity.startsWith("#X"))
+							? Integer.parseInt(entity.substring(2), 16)
+							: Integer.parseInt(entity.substring(1));
+					decoded = String.valueOf((char) code);
+				} catch(NumberFormatException e) {
+					// leave as is
+				}
+			}
+			if(decoded == null) {
+				result.append(c);
+				i++;
+			} else {
+				result.append(decoded);
+				i = semicolon + 1;
+			}
+		}
+		return result.toString();
+	}
+
+}
@@ -1,21 +1,26 @@
 package be.maartendecat.kotnetlogin;
 
-import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
-import org.jsoup.Connection;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-
-import android.util.Log;
-import be.maartendecat.kotnetlogin.AsyncJSoupFetch.AsyncJSoupFetchCallback;
-import be.maartendecat.kotnetlogin.AsyncJSoupFetch.Type;
+import be.maartendecat.kotnetlogin.Logger.Event;
+import be.maartendecat.kotnetlogin.ResultClassifier.Marker;
 
 /**
  * Class used for executing the login procedure.
  * 
+ * Every account logs in through its own {@link LoginSession}. The manager
+ * keeps what the sessions share (the extraction plan of the institution,
+ * the probe and the cached login form) and limits the number of sessions that
+ * run at the same time: the others wait for a slot, in the order they were
+ * started. The methods of the manager itself act on the default session, the
+ * one of the account of the user.
+ * 
+ * All methods must be called from the main/UI thread.
+ * 
  * @author maartend
  *
  */
@@ -23,6 +28,18 @@ public class LoginManager {
 	
 	private static final String TAG = "LoginManager";
 	
+	
+	/**
+	 * The number of sessions that run at the same time. A session has at most
+	 * one fetch in flight, so this matches the threads of the FetchEngine.
+	 */
+	private static final int MAX_RUNNING_SESSIONS = 3;
+	
+	/**
+	 * The period over which the throughput is measured (in milliseconds).
+	 */
+	private static final long THROUGHPUT_WINDOW = 10 * 1000;
+	
 	/************************************
 	 * STATIC SINGLETON STUFF
 	 ************************************/
@@ -40,15 +57,55 @@ public class LoginManager {
 	 * FIELDS
 	 ****************************/
 	
-	private String username;
-	private String password;
+	/**
+	 * The compiled profile of the institution: the login page, the form and
+	 * the result markers.
+	 */
+	private ExtractionPlan plan = ExtractionPlan.KU_LEUVEN;
+	
+	/**
+	 * The last fetched login form, used to skip fetching the login page.
+	 */
+	private final LoginFormCache formCache = new LoginFormCache();
+	
+	/**
+	 * The probe used to check whether logging in is needed at all, null if
+	 * the connection is not probed.
+	 */
+	private ConnectivityProbe probe = new ConnectivityProbe(ConnectivityProbe.DEFAULT_PROBE_URL);
+	
+	/**
+	 * Decides which failed requests are retried and when the login page is
+	 * fetched twice in parallel, based on the given histogram of earlier
+	 * procedures (null if not known).
+	 */
+	private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+	private LatencyHistogram latencyHistogram = null;
+	
+	/**
+	 * The session of the account of the user.
+	 */
+	private final LoginSession defaultSession = new LoginSession(this, null, null);
+	
+	/**
+	 * The sessions that are running and the ones waiting for a slot.
+	 */
+	private final List<LoginSession> runningSessions = new ArrayList<LoginSession>();
+	private final LinkedList<LoginSession> waitingSessions = new LinkedList<LoginSession>();
+	
+	/**
+	 * When sessions finished during the last THROUGHPUT_WINDOW, and when the
+	 * first session started (0 if none did).
+	 */
+	private final LinkedList<Long> finishedAt = new LinkedList<Long>();
+	private long firstStartedAt = 0;
 	
 	/****************************
 	 * CONSTRUCTOR
 	 ****************************/
 	
 	private LoginManager() {
-		
+		cacheHostOf(plan.getLoginPageUrl());
 	}
 	
 	/************************************
@@ -92,177 +149,321 @@ public class LoginManager {
 	}
 	
 	/**
-	 * Internal class used for easy notification of login procedure listeners (readable code!).
+	 * Register a listener of the default session. The listener is held
+	 * weakly, see {@link ListenerRegistry}.
+	 */
+	public void registerLoginProcedureListener(LoginProcedureListener listener) {
+		defaultSession.registerLoginProcedureListener(listener);
+	}
+	
+	/**
+	 * Unregister a listener of the default session. Nothing is changed if the
+	 * listener was not registered in the first place.
 	 */
-	private class LoginProcedureListeners extends ArrayList<LoginProcedureListener> {
+	public void unregisterLoginProcedureListener(LoginProcedureListener listener) {
+		defaultSession.unregisterLoginProcedureListener(listener);
+	}
+	
+	/**
+	 * Interface used for classes keeping track of how long the stages of the
+	 * login procedure take.
+	 */
+	public interface LoginMetricsListener {
 		
-		private static final long serialVersionUID = 8773932103001806230L;
-
-		public void notifyLoginProcedureStarted(String username) {
-			for(LoginProcedureListener l: this) { 
-				l.onLoginProcedureStarted(username); 
-			}
-		}
-
-		public void notifyNewStageReached(String description) {
-			for(LoginProcedureListener l: this) { 
-				l.onNewStageReached(description);
-			}
+		/**
+		 * Called when a login procedure ended, in success, failure or error,
+		 * with the time spent in each of its stages. Not called for cancelled
+		 * procedures.
+		 */
+		public void onProcedureTimed(StageTimings timings);
+	}
+	
+	private ListenerRegistry<LoginMetricsListener> metricsListeners = new ListenerRegistry<LoginMetricsListener>();
+	
+	/**
+	 * Register a metrics listener. The listener is held weakly, see
+	 * {@link ListenerRegistry}.
+	 */
+	public void registerLoginMetricsListener(LoginMetricsListener listener) {
+		this.metricsListeners.register(listener);
+	}
+	
+	/**
+	 * Unregister a metrics listener. Nothing is changed if the listener was not
+	 * registered in the first place.
+	 */
+	public void unregisterLoginMetricsListener(LoginMetricsListener listener) {
+		this.metricsListeners.unregister(listener);
+	}
+	
+	/**
+	 * Reports the timings of a procedure that just ended to the metrics
+	 * listeners.
+	 */
+	void reportTimings(StageTimings timings) {
+		for(LoginMetricsListener l: metricsListeners) {
+			l.onProcedureTimed(timings);
 		}
-
-		public void notifyProcedureError(String description) {
-			for(LoginProcedureListener l: this) { 
-				l.onProcedureError(description);
-			}
+	}
+	
+	/************************************
+	 * SESSIONS
+	 ************************************/
+	
+	/**
+	 * Creates a new session for the given account, with its own cookies and
+	 * listeners.
+	 */
+	public LoginSession createSession(String username, String password) {
+		return new LoginSession(this, username, password);
+	}
+	
+	/**
+	 * Returns the session of the account of the user, used by the other
+	 * methods of the manager.
+	 */
+	public LoginSession getDefaultSession() {
+		return defaultSession;
+	}
+	
+	/**
+	 * Returns the number of sessions that finished per second, over the last
+	 * few seconds.
+	 */
+	public double getLoginsPerSecond() {
+		long now = Platform.getInstance().elapsedRealtime();
+		pruneFinished(now);
+		if(finishedAt.isEmpty()) {
+			return 0;
 		}
-
-		public void notifyProcedureSuccess() {
-			for(LoginProcedureListener l: this) { 
-				l.onProcedureSuccess();
-			}
+		long period = Math.min(THROUGHPUT_WINDOW, now - firstStartedAt);
+		return finishedAt.size() * 1000.0 / Math.max(period, 1);
+	}
+	
+	/**
+	 * Gives the given session a slot and begins its procedure, or puts it in
+	 * line if all slots are taken. Returns whether the session began.
+	 */
+	boolean requestSlot(LoginSession session) {
+		if(firstStartedAt == 0) {
+			firstStartedAt = Platform.getInstance().elapsedRealtime();
 		}
-
-		public void notifyProcedureFailure(String description) {
-			for(LoginProcedureListener l: this) { 
-				l.onProcedureFailure(description);
-			}
+		if(runningSessions.size() < MAX_RUNNING_SESSIONS) {
+			runningSessions.add(session);
+			session.begin();
+			return true;
 		}
+		waitingSessions.add(session);
+		Logger.getInstance().log(Event.WAITING, session.getId(), waitingSessions.size());
+		return false;
 	}
 	
-	private LoginProcedureListeners listeners = new LoginProcedureListeners();
-	
 	/**
-	 * Register a listener.
+	 * Takes the slot of the given session, or its place in line, and begins
+	 * the next session in line. Returns whether the session had a slot or
+	 * was waiting for one.
+	 * 
+	 * @param finished	Whether the procedure of the session ended (as 
+	 * 					opposed to being cancelled).
 	 */
-	public void registerLoginProcedureListener(LoginProcedureListener listener) {
-		this.listeners.add(listener);
+	boolean releaseSlot(LoginSession session, boolean finished) {
+		boolean wasRunning = runningSessions.remove(session);
+		boolean wasWaiting = waitingSessions.remove(session);
+		if(wasRunning && finished) {
+			long now = Platform.getInstance().elapsedRealtime();
+			finishedAt.add(now);
+			pruneFinished(now);
+			Logger.getInstance().log(Event.FINISHED, session.getId(), (long) (getLoginsPerSecond() * 1000));
+		}
+		while(!waitingSessions.isEmpty() && runningSessions.size() < MAX_RUNNING_SESSIONS) {
+			LoginSession next = waitingSessions.removeFirst();
+			runningSessions.add(next);
+			next.begin();
+		}
+		return wasRunning || wasWaiting;
+	}
+	
+	boolean hasSlot(LoginSession session) {
+		return runningSessions.contains(session);
+	}
+	
+	boolean isWaitingForSlot(LoginSession session) {
+		return waitingSessions.contains(session);
 	}
 	
 	/************************************
-	 * CORE FUNCTIONALITY
+	 * DEFAULT SESSION
 	 ************************************/
 	
 	/**
-	 * Starts the login procedure with given username and password.
+	 * Starts the login procedure of the default session with given username 
+	 * and password, or attaches to the one in progress. See 
+	 * {@link LoginSession#start(String, String)}.
 	 * 
 	 * @param username
 	 * @param password
-	 * @return boolean	Successful login or not.
+	 * @return	Whether a new procedure was started.
 	 */
-	public void startLoginProcedure(String username, String password) {
-		this.username = username;
-		this.password = password;
-		
-		Log.i(TAG, "Starting new session for " + username);
-		listeners.notifyLoginProcedureStarted(username);
-		
-		// fetch the login page
-		listeners.notifyNewStageReached("Fetching login page...");
-		Connection loginConnection = Jsoup.connect("https://netlogin.kuleuven.be/cgi-bin/wayf2.pl?inst=kuleuven&lang=nl&submit=Ga+verder+%2F+Continue");
-		
-		new AsyncJSoupFetch(Type.GET, new AsyncJSoupFetchCallback() {
-			
-			public void onSuccess(Document result) {
-				LoginManager.this.onLoginPageFetched(result);
-			}
-			
-			public void onIOException(IOException e) {
-				String description = "Failed to fetch the login page (" + e.getClass().getName() + ": " + e.getMessage() + ")";
-				Log.e(TAG, description);
-				listeners.notifyProcedureError(description);
-				// procedure finished
-			}
-		}).execute(loginConnection);
-	}	
-	
-	/**
-	 * Called after the async login page fetch when the document fetch was successful.
-	 * 
-	 * @param loginPage
+	public boolean startLoginProcedure(String username, String password) {
+		return defaultSession.start(username, password);
+	}
+	
+	/**
+	 * Cancels the login procedure of the default session in progress, if any.
 	 */
-	private void onLoginPageFetched(Document loginPage) {
-		Log.i(TAG, "Fetched netlogin page");
-		
-		Elements forms = loginPage.select("form[name=netlogin]");
-		if(forms.size() == 0) {
-			Log.e(TAG, "No forms with name \"netlogin\" in the page. Quitting.");
-			listeners.notifyProcedureError("No forms with name \"netlogin\" in the page.");
-			return;
-		} else if (forms.size() > 1) {
-			Log.e(TAG, "Multiple forms with name \"netlogin\" in the page. Quitting.");
-			listeners.notifyProcedureError("Multiple forms with name \"netlogin\" in the page.");
+	public void cancelLoginProcedure() {
+		defaultSession.cancel();
+	}
+	
+	/**
+	 * Fetches the login page in advance for the default session. See
+	 * {@link LoginSession#prefetchLoginPage()}.
+	 */
+	public void prefetchLoginPage() {
+		defaultSession.prefetchLoginPage();
+	}
+	
+	/**
+	 * Discards the login form prefetched for the default session, for example
+	 * because the network changed.
+	 */
+	public void discardPrefetchedForm() {
+		defaultSession.discardPrefetchedForm();
+	}
+	
+	/************************************
+	 * SHARED CONFIGURATION
+	 ************************************/
+	
+	/**
+	 * Switches to the given institution. The profile is compiled once here;
+	 * procedures that are running finish with the previous one. Nothing
+	 * happens if the profile did not change, so the cached and prefetched
+	 * login forms are kept.
+	 */
+	public void setProfile(InstitutionProfile profile) {
+		if(profile.equals(getProfile())) {
 			return;
 		}
-		Element form = forms.first();
-		Log.e(TAG, "Found login form.");
-		
-		// process the login form
-		// target page
-		String target = form.attr("action");
-		if(target.startsWith("/")) {
-			target = "https://netlogin.kuleuven.be" + target;
-		}
-		Log.i(TAG, "Form target: " + target);
-		// set up connection to the target
-		Connection resultConnection = Jsoup.connect(target);
-		// hidden inputs
-		Elements hiddenInputs = form.select("input[type=hidden]");
-		for(Element input: hiddenInputs) {
-			resultConnection.data(input.attr("name"), input.attr("value"));
+		Platform.getInstance().info(TAG, "Institution: " + profile);
+		setPlan(ExtractionPlan.compile(profile));
+		formCache.clear();
+	}
+	
+	public InstitutionProfile getProfile() {
+		return plan.getProfile();
+	}
+	
+	/**
+	 * Returns the compiled profile of the institution.
+	 */
+	ExtractionPlan getPlan() {
+		return plan;
+	}
+	
+	/**
+	 * Sets the URL of the login page, for example to log in on a local stand-in
+	 * of netlogin.
+	 */
+	public void setLoginPageUrl(String loginPageUrl) {
+		setPlan(plan.withLoginPageUrl(loginPageUrl));
+	}
+	
+	public String getLoginPageUrl() {
+		return plan.getLoginPageUrl();
+	}
+	
+	/**
+	 * Sets the URL used to probe the connection before logging in. This URL
+	 * should answer with "204 No Content" when the device is online. Null
+	 * disables the probe.
+	 */
+	public void setProbeUrl(String probeUrl) {
+		this.probe = (probeUrl == null) ? null : new ConnectivityProbe(probeUrl, plan.getPortalHost());
+	}
+	
+	/**
+	 * Returns the probe used before logging in, null if disabled.
+	 */
+	ConnectivityProbe getProbe() {
+		return probe;
+	}
+	
+	/**
+	 * Sets the markers used to classify the page returned after submitting
+	 * the login form. See {@link ResultClassifier}.
+	 */
+	public void setResultMarkers(List<Marker> markers) {
+		this.plan = plan.withResultMarkers(markers);
+	}
+	
+	/**
+	 * Sets the policy for retrying failed requests and hedging slow ones.
+	 * {@link RetryPolicy#NONE} turns both off.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/**
+	 * Sets the histogram of earlier procedures, used to decide when a fetch
+	 * is slower than usual.
+	 */
+	public void setLatencyHistogram(LatencyHistogram latencyHistogram) {
+		this.latencyHistogram = latencyHistogram;
+	}
+	
+	LatencyHistogram getLatencyHistogram() {
+		return latencyHistogram;
+	}
+	
+	/**
+	 * Returns the cache of the login form, which also keeps the fast path
+	 * hit and miss counters.
+	 */
+	public LoginFormCache getFormCache() {
+		return formCache;
+	}
+	
+	/**
+	 * Resolves the host of the login page again in the background, e.g. when
+	 * a network comes up, so the next login does not wait for it.
+	 */
+	public void refreshDns() {
+		DnsCache.getInstance().refreshInBackground();
+	}
+	
+	/************************************
+	 * HELPER METHODS
+	 ************************************/
+	
+	private void setPlan(ExtractionPlan plan) {
+		this.plan = plan;
+		if(probe != null) {
+			probe = new ConnectivityProbe(probe.getProbeUrl(), plan.getPortalHost());
 		}
-		Log.i(TAG, "Found " + hiddenInputs.size() + " hidden inputs.");
-		// determine name of the password field (this changes for every request, but always starts with "pwd")
-		Elements passwordFields = form.select("input[type=password]");
-		if(passwordFields.size() == 0) {
-			Log.e(TAG, "No password fields in the form. Quitting.");
-			listeners.notifyProcedureError("No password fields in the form.");
-			return;
-		} else if (passwordFields.size() > 1) {
-			Log.e(TAG, "Multiple password fields in the form. Quitting.");
-			listeners.notifyProcedureError("Multiple password fields in the form. Quitting.");
-			return;
+		cacheHostOf(plan.getLoginPageUrl());
+		discardPrefetchedForm();
+	}
+	
+	/**
+	 * Caches the address of the host of the given URL, see {@link DnsCache}.
+	 */
+	private static void cacheHostOf(String url) {
+		try {
+			DnsCache.getInstance().add(new URL(url).getHost());
+		} catch (MalformedURLException e) {
+			// the login fails with a clearer error
 		}
-		Element passwordField = passwordFields.first();
-		// add the password to the connection
-		resultConnection.data(passwordField.attr("name"), password);
-		// finally, also add the username
-		resultConnection.data("uid", username);
-		
-		// post the form and retrieve the result
-		listeners.notifyNewStageReached("Submitting login information...");
-		new AsyncJSoupFetch(Type.POST, new AsyncJSoupFetchCallback() {
-			
-			public void onSuccess(Document result) {
-				LoginManager.this.onResultPageFetched(result);
-			}
-			
-			public void onIOException(IOException e) {
-				String description = "Failed to fetch the result page (" + e.getClass().getName() + ": " + e.getMessage() + ")";
-				Log.e(TAG, description);
-				listeners.notifyProcedureError(description);
-				// procedure finished
-			}
-			
-		}).execute(resultConnection);
-	}	
-		
-		/**
-		 * Called after the async login page fetch when the document fetch was successful.
-		 * 
-		 * @param loginPage
-		 */
-	private void onResultPageFetched(Document resultPage) {		
-		// process result
-		Elements errorMsgs = resultPage.getElementsMatchingText("Login NIET geslaagd").select("font");
-		if(errorMsgs.isEmpty()) {
-			// TODO is this robust enough?
-			Log.i(TAG, "Woohoo, login successfull.");
-			listeners.notifyProcedureSuccess();
-		} else {
-			// The first sibling of the font element should be the <p> containing the error.
-			Element p = errorMsgs.first().nextElementSibling();
-			Log.e(TAG, "Eek, login failed: " + p.text());
-			listeners.notifyProcedureFailure(p.text());
+	}
+	
+	private void pruneFinished(long now) {
+		while(!finishedAt.isEmpty() && now - finishedAt.getFirst() > THROUGHPUT_WINDOW) {
+			finishedAt.removeFirst();
 		}
 	}
 }
@@ -0,0 +1,170 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.util.Log;
+import be.maartendecat.kotnetlogin.LoginManager.LoginMetricsListener;
+import be.maartendecat.kotnetlogin.Logger.Event;
+
+/**
+ * Keeps the latency histogram of all login procedures, stored in the private
+ * files of the app so it survives restarts. Helps finding out what is slow
+ * when a login is reported to be slow.
+ *
+ * @author maartend
+ *
+ */
+public class LoginMetrics implements LoginMetricsListener {
+
+	private static final String TAG = "LoginMetrics";
+
+	private static final String FILE_NAME = "latency.hist";
+
+	/************************************
+	 * STATIC SINGLETON STUFF
+	 ************************************/
+
+	private static LoginMetrics instance;
+
+	public static LoginMetrics getInstance() {
+		if(instance == null) {
+			throw new NullPointerException("initialize before requesting an instance!");
+		}
+		return instance;
+	}
+
+	/**
+	 * Loads the stored histogram (in the background) and starts recording the
+	 * procedures of the LoginManager. The LoginManager uses the histogram to spot slow fetches.
+	 * Called when the application starts, so procedures started in the
+	 * background are recorded too.
+	 */
+	public static void initialize(Context ctx) {
+		if(instance == null) {
+			instance = new LoginMetrics(ctx.getFileStreamPath(FILE_NAME));
+			LoginManager.getInstance().registerLoginMetricsListener(instance);
+			LoginManager.getInstance().setLatencyHistogram(instance.histogram);
+		}
+	}
+
+	/************************************
+	 * FIELDS
+	 ************************************/
+
+	private final File file;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private boolean loaded = false;
+
+	/************************************
+	 * CONSTRUCTOR
+	 ************************************/
+
+	private LoginMetrics(File file) {
+		this.file = file;
+		loadInBackground();
+	}
+
+	/************************************
+	 * METRICS
+	 ************************************/
+
+	public LatencyHistogram getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * Forgets all recorded procedures.
+	 */
+	public void clear() {
+		histogram.clear();
+		saveInBackground();
+	}
+
+	/**
+	 * Called when a login procedure finished (in the main/UI thread).
+	 */
+	public void onProcedureTimed(StageTimings timings) {
+		Logger.getInstance().log(Event.TIMED, (int) timings.getRequests(), timings.getTotalMillis(), timings.getWireBytes());
+		histogram.record(timings);
+		saveInBackground();
+	}
+
+	/************************************
+	 * PERSISTENCE
+	 ************************************/
+
+	/**
+	 * Loads the stored histogram off the main thread. Loading adds to the
+	 * counts, so procedures recorded in the meantime are kept.
+	 */
+	private void loadInBackground() {
+		Runnable load = new Runnable() {
+			public void run() {
+				load();
+			}
+		};
+		FetchEngine.getInstance().runOnDiskThread(load);
+	}
+
+	private synchronized void load() {
+		if(loaded) {
+			return;
+		}
+		loaded = true;
+		if(!file.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				histogram.readFrom(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// start over then
+			Log.w(TAG, "Could not load the latency histogram: " + e.getMessage());
+			histogram.clear();
+		}
+	}
+
+	private void saveInBackground() {
+		FetchEngine.getInstance().runOnDiskThread(new Runnable() {
+			public void run() {
+				save();
+			}
+		});
+	}
+
+	/**
+	 * Writes the histogram to a temporary file first, so a crash while writing
+	 * does not lose the stored one.
+	 */
+	private synchronized void save() {
+		// never overwrite the stored histogram before it is loaded
+		load();
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				histogram.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if(!temp.renameTo(file)) {
+				throw new IOException("Could not rename " + temp);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not save the latency histogram: " + e.getMessage());
+		}
+	}
+
+}
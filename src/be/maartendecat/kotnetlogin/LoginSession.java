@@ -0,0 +1,744 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.maartendecat.kotnetlogin.AsyncLoginFormFetch.AsyncLoginFormFetchCallback;
+import be.maartendecat.kotnetlogin.AsyncProbeFetch.AsyncProbeFetchCallback;
+import be.maartendecat.kotnetlogin.AsyncResultFetch.AsyncResultFetchCallback;
+import be.maartendecat.kotnetlogin.ConnectivityProbe.Status;
+import be.maartendecat.kotnetlogin.LoginManager.LoginProcedureListener;
+import be.maartendecat.kotnetlogin.Logger.Event;
+import be.maartendecat.kotnetlogin.ResultClassifier.Outcome;
+import be.maartendecat.kotnetlogin.ResultClassifier.Result;
+import be.maartendecat.kotnetlogin.StageTimings.Stage;
+
+/**
+ * The login procedure of one account. A session has its own credentials, its
+ * own HTTP client (and so its own cookies and connections) and its own
+ * listeners, so several sessions can log in at the same time without getting
+ * in each other's way. Sessions are created by the {@link LoginManager}, which
+ * limits how many of them run at once.
+ *
+ * A session runs one procedure at a time. Starting it while a procedure is
+ * in progress normally attaches to that procedure: its outcome is the answer
+ * to both requests. The {@link SupersedePolicy} decides when a new request
+ * replaces the running procedure instead.
+ * 
+ * All methods must be called from the main/UI thread.
+ *
+ * @author maartend
+ *
+ */
+public class LoginSession {
+
+	private static final String TAG = "LoginSession";
+
+	/**
+	 * How long a prefetched login form is used (in milliseconds).
+	 */
+	private static final long PREFETCH_TTL = 60 * 1000;
+
+	/**
+	 * The time budget of a login procedure and of a prefetch (in milliseconds).
+	 */
+	private static final long PROCEDURE_TIMEOUT = 30 * 1000;
+	private static final long PREFETCH_TIMEOUT = 15 * 1000;
+
+	/**
+	 * The maximal time spent on probing the connection (in milliseconds).
+	 */
+	private static final long PROBE_TIMEOUT = 3 * 1000;
+
+	/**
+	 * Hands out the ids of the sessions.
+	 */
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	/****************************
+	 * SUPERSEDE POLICY
+	 ****************************/
+
+	/**
+	 * Decides whether a request to start a procedure replaces the running one.
+	 */
+	public enum SupersedePolicy {
+		/**
+		 * Always attach to the running procedure. Changed credentials are
+		 * ignored until it ends.
+		 */
+		NEVER,
+		/**
+		 * Replace the running procedure when the credentials changed, attach
+		 * to it otherwise.
+		 */
+		ON_CHANGED_CREDENTIALS,
+		/**
+		 * Always replace the running procedure.
+		 */
+		ALWAYS;
+	}
+
+	/**
+	 * Where a submitted login form comes from.
+	 */
+	private enum FormSource {
+		/**
+		 * Fetched by the procedure itself.
+		 */
+		FETCHED,
+		/**
+		 * Fetched in advance, it may have gone stale in the meantime.
+		 */
+		PREFETCHED,
+		/**
+		 * The cached template, the login page was not fetched.
+		 */
+		CACHED;
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final LoginManager manager;
+
+	/**
+	 * Identifies the events of this session in the log.
+	 */
+	private final int id = ids.incrementAndGet();
+	private final Logger logger = Logger.getInstance();
+
+	private SupersedePolicy supersedePolicy = SupersedePolicy.ON_CHANGED_CREDENTIALS;
+
+	private String username;
+	private String password;
+
+	/**
+	 * The HTTP client used for all stages of the procedure, so they can share
+	 * connections, TLS sessions and cookies.
+	 */
+	private final HttpClient client = new HttpClient();
+
+	/**
+	 * The deadline of the current procedure and its fetch in progress (null if
+	 * no fetch is in progress).
+	 */
+	private Deadline deadline;
+	private AsyncFetch<?, ?> currentFetch = null;
+
+	/**
+	 * The timings of the stages of the current procedure, null if no procedure
+	 * is running.
+	 */
+	private StageTimings timings;
+
+	/**
+	 * The plan of the institution for the current procedure, taken from the
+	 * manager when it starts, so switching institutions does not affect it.
+	 */
+	private ExtractionPlan plan = ExtractionPlan.KU_LEUVEN;
+
+	/**
+	 * The prefetched login form, null if there is none. Only used once and
+	 * only during PREFETCH_TTL after fetching it.
+	 */
+	private LoginForm prefetchedForm = null;
+	private long prefetchedAt;
+
+	/**
+	 * Whether a prefetch is in progress and whether a login procedure is
+	 * waiting for it to finish.
+	 */
+	private boolean prefetching = false;
+	private boolean waitingForPrefetch = false;
+
+	/**
+	 * Whether the current procedure renews a session that may still be
+	 * alive, i.e. logs in even if the device is online.
+	 */
+	private boolean renewal = false;
+
+	/**
+	 * What the probe of the last procedure found, and when the last login
+	 * was accepted (System.currentTimeMillis(), 0 if never).
+	 */
+	private Status lastProbeStatus = Status.UNKNOWN;
+	private long lastLoginTime = 0;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	LoginSession(LoginManager manager, String username, String password) {
+		this.manager = manager;
+		this.username = username;
+		this.password = password;
+	}
+
+	/************************************
+	 * LISTENERS
+	 ************************************/
+
+	/**
+	 * Internal class used for easy notification of login procedure listeners (readable code!).
+	 */
+	private class LoginProcedureListeners extends ListenerRegistry<LoginProcedureListener> {
+
+		public void notifyLoginProcedureStarted(String username) {
+			for(LoginProcedureListener l: this) {
+				l.onLoginProcedureStarted(username);
+			}
+		}
+
+		public void notifyNewStageReached(String description) {
+			for(LoginProcedureListener l: this) {
+				l.onNewStageReached(description);
+			}
+		}
+
+		public void notifyProcedureError(String description) {
+			finishProcedure();
+			for(LoginProcedureListener l: this) {
+				l.onProcedureError(description);
+			}
+		}
+
+		public void notifyProcedureSuccess() {
+			finishProcedure();
+			for(LoginProcedureListener l: this) {
+				l.onProcedureSuccess();
+			}
+		}
+
+		public void notifyProcedureFailure(String description) {
+			finishProcedure();
+			for(LoginProcedureListener l: this) {
+				l.onProcedureFailure(description);
+			}
+		}
+	}
+
+	private LoginProcedureListeners listeners = new LoginProcedureListeners();
+
+	/**
+	 * Register a listener. The listener is held weakly, see
+	 * {@link ListenerRegistry}.
+	 */
+	public void registerLoginProcedureListener(LoginProcedureListener listener) {
+		this.listeners.register(listener);
+	}
+
+	/**
+	 * Unregister a listener. Nothing is changed if the listener was not registered
+	 * in the first place.
+	 */
+	public void unregisterLoginProcedureListener(LoginProcedureListener listener) {
+		this.listeners.unregister(listener);
+	}
+
+	/************************************
+	 * CREDENTIALS
+	 ************************************/
+
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Returns the id of this session, the code of its events in the
+	 * {@link Logger}.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Sets the credentials, only when no procedure is running. When the
+	 * account changes, the cookies and the prefetched form of the previous
+	 * account are dropped.
+	 */
+	private void setCredentials(String username, String password) {
+		if(this.username != null && !this.username.equals(username)) {
+			client.clearCookies();
+			discardPrefetchedForm();
+		}
+		this.username = username;
+		this.password = password;
+	}
+
+	/************************************
+	 * CORE FUNCTIONALITY
+	 ************************************/
+
+	public SupersedePolicy getSupersedePolicy() {
+		return supersedePolicy;
+	}
+
+	public void setSupersedePolicy(SupersedePolicy supersedePolicy) {
+		this.supersedePolicy = supersedePolicy;
+	}
+
+	/**
+	 * Starts the login procedure with the current credentials. See
+	 * {@link #start(String, String)}.
+	 */
+	public boolean start() {
+		return start(username, password);
+	}
+
+	/**
+	 * Starts the login procedure with the given credentials. If a procedure
+	 * of this session is still running, the supersede policy decides whether
+	 * it is replaced or whether this request attaches to it. The procedure
+	 * may have to wait until other sessions finish (see {@link LoginManager}).
+	 *
+	 * @return	Whether a new procedure was started, false if the request
+	 * 			attached to the running one.
+	 */
+	public boolean start(String username, String password) {
+		return start(username, password, false);
+	}
+
+	/**
+	 * Logs in again with the given credentials, also when the device is
+	 * online, to renew a session before it expires. Otherwise the same as
+	 * {@link #start(String, String)}.
+	 */
+	public boolean renew(String username, String password) {
+		return start(username, password, true);
+	}
+
+	/**
+	 * Returns what the connection probe of the last procedure found, UNKNOWN
+	 * if the connection was not probed.
+	 */
+	public Status getLastProbeStatus() {
+		return lastProbeStatus;
+	}
+
+	/**
+	 * Returns when a login of this session was last accepted by netlogin
+	 * (System.currentTimeMillis()), 0 if never. Procedures that found the
+	 * device already online do not count.
+	 */
+	public long getLastLoginTime() {
+		return lastLoginTime;
+	}
+
+	private boolean start(String username, String password, boolean renewal) {
+		if(isRunning() && !supersedes(username, password)) {
+			logger.log(Event.ATTACHED, id);
+			return false;
+		}
+		// a new procedure replaces the running one
+		cancelCurrentFetch();
+		setCredentials(username, password);
+		this.renewal = renewal;
+		logger.log(Event.STARTED, id, renewal ? 1 : 0);
+		listeners.notifyLoginProcedureStarted(username);
+		if(!manager.requestSlot(this)) {
+			listeners.notifyNewStageReached("Waiting for other logins...");
+		}
+		return true;
+	}
+
+	/**
+	 * Cancels the login procedure in progress, if any.
+	 */
+	public void cancel() {
+		if(cancelCurrentFetch()) {
+			logger.log(Event.CANCELLED, id);
+			listeners.notifyProcedureError("Login cancelled.");
+		}
+	}
+
+	/**
+	 * Returns whether a procedure of this session is running or waiting to run.
+	 */
+	public boolean isRunning() {
+		return manager.hasSlot(this) || manager.isWaitingForSlot(this);
+	}
+
+	/**
+	 * Runs the procedure once the manager gave it a slot.
+	 */
+	void begin() {
+		this.deadline = Deadline.after(PROCEDURE_TIMEOUT);
+		this.timings = new StageTimings();
+		this.plan = manager.getPlan();
+		this.lastProbeStatus = Status.UNKNOWN;
+
+		ConnectivityProbe probe = manager.getProbe();
+		if(probe == null) {
+			continueLoginProcedure();
+			return;
+		}
+		// first check whether logging in is needed at all
+		listeners.notifyNewStageReached("Checking connection...");
+		Deadline probeDeadline = Deadline.after(Math.min(PROBE_TIMEOUT, deadline.remainingMillis()));
+		currentFetch = new AsyncProbeFetch(new AsyncProbeFetchCallback() {
+
+			public void onProbed(Status status) {
+				currentFetch = null;
+				LoginSession.this.onProbed(status);
+			}
+		}).execute(probe, probeDeadline);
+	}
+
+	/**
+	 * Called after the connection was probed at the start of the procedure.
+	 */
+	private void onProbed(Status status) {
+		logger.log(Event.PROBED, id, status.ordinal());
+		lastProbeStatus = status;
+		switch(status) {
+			case ONLINE:
+				if(renewal) {
+					// log in again anyway, to renew the session
+					continueLoginProcedure();
+					break;
+				}
+				logger.log(Event.SUCCEEDED, id, -1);
+				listeners.notifyNewStageReached("Already online.");
+				listeners.notifyProcedureSuccess();
+				// procedure finished
+				break;
+			case OTHER_NETWORK:
+				listeners.notifyProcedureError("Not connected to Kotnet.");
+				// procedure finished
+				break;
+			default:
+				// held back by netlogin, or nothing known: just try
+				continueLoginProcedure();
+				break;
+		}
+	}
+
+	/**
+	 * Continues the login procedure once it is known that logging in is needed:
+	 * submits the prefetched or the cached form if possible, fetches the login
+	 * page otherwise.
+	 */
+	private void continueLoginProcedure() {
+		// use the prefetched login form if there is one
+		LoginForm prefetched = takePrefetchedForm();
+		if(prefetched != null) {
+			logger.log(Event.PREFETCHED_FORM_USED, id);
+			submitLoginForm(prefetched, FormSource.PREFETCHED);
+			return;
+		}
+		if(prefetching) {
+			// continues when the prefetch finishes
+			listeners.notifyNewStageReached("Fetching login page...");
+			waitingForPrefetch = true;
+			return;
+		}
+
+		// try to skip the login page using the cached form
+		LoginForm template = manager.getFormCache().getFastPathTemplate();
+		if(template != null) {
+			logger.log(Event.CACHED_FORM_USED, id);
+			submitLoginForm(template, FormSource.CACHED);
+		} else {
+			fetchLoginPage();
+		}
+	}
+
+	/**
+	 * Fetches the login page in advance, so a login procedure started shortly
+	 * after can immediately submit the form. Nothing happens if a prefetch is
+	 * already in progress or a fresh prefetched form is available.
+	 */
+	public void prefetchLoginPage() {
+		if(prefetching || (prefetchedForm != null && !isPrefetchExpired())) {
+			return;
+		}
+		logger.log(Event.PREFETCH_STARTED, id);
+		prefetching = true;
+		final ExtractionPlan prefetchPlan = manager.getPlan();
+		new AsyncLoginFormFetch(client, prefetchPlan, new AsyncLoginFormFetchCallback() {
+
+			public void onSuccess(LoginForm result) {
+				prefetching = false;
+				if(!waitingForPrefetch && prefetchPlan != manager.getPlan()) {
+					// the institution changed in the meantime
+					return;
+				}
+				manager.getFormCache().update(result);
+				if(waitingForPrefetch) {
+					waitingForPrefetch = false;
+					submitLoginForm(result, FormSource.FETCHED);
+				} else {
+					prefetchedForm = result;
+					prefetchedAt = Platform.getInstance().elapsedRealtime();
+				}
+			}
+
+			public void onLoginFormException(LoginFormException e) {
+				onPrefetchFailed();
+			}
+
+			public void onIOException(IOException e) {
+				onPrefetchFailed();
+			}
+		}).setRetryPolicy(manager.getRetryPolicy()).execute(new HttpRequest(prefetchPlan.getLoginPageUrl()), Deadline.after(PREFETCH_TIMEOUT));
+	}
+
+	/**
+	 * Discards the prefetched login form, for example because the network
+	 * changed.
+	 */
+	public void discardPrefetchedForm() {
+		prefetchedForm = null;
+	}
+
+	/**
+	 * Fetches the login page and continues with onLoginPageFetched().
+	 */
+	private void fetchLoginPage() {
+		listeners.notifyNewStageReached("Fetching login page...");
+		HttpRequest loginPageRequest = new HttpRequest(plan.getLoginPageUrl());
+		RetryPolicy retryPolicy = manager.getRetryPolicy();
+		long hedgeDelay = retryPolicy.getHedgeDelayMillis(manager.getLatencyHistogram());
+
+		currentFetch = new AsyncLoginFormFetch(client, plan, new AsyncLoginFormFetchCallback() {
+
+			public void onSuccess(LoginForm result) {
+				currentFetch = null;
+				LoginSession.this.onLoginPageFetched(result);
+			}
+
+			public void onLoginFormException(LoginFormException e) {
+				currentFetch = null;
+				Platform.getInstance().error(TAG, e.getMessage() + " Quitting.");
+				logger.log(Event.ERROR, id);
+				listeners.notifyProcedureError(e.getMessage());
+				// procedure finished
+			}
+
+			public void onIOException(IOException e) {
+				currentFetch = null;
+				String description = "Failed to fetch the login page (" + describe(e) + ")";
+				Platform.getInstance().error(TAG, description);
+				logError(e);
+				listeners.notifyProcedureError(description);
+				// procedure finished
+			}
+		}).setRetryPolicy(retryPolicy).setHedgeDelay(hedgeDelay).execute(loginPageRequest, deadline, timings);
+	}
+
+	/**
+	 * Called after the async login page fetch when the login form was found.
+	 *
+	 * @param form
+	 */
+	private void onLoginPageFetched(LoginForm form) {
+		logger.log(Event.LOGIN_PAGE_FETCHED, id);
+		manager.getFormCache().update(form);
+		submitLoginForm(form, FormSource.FETCHED);
+	}
+
+	/**
+	 * Fills in the given login form and submits it.
+	 *
+	 * @param form
+	 * @param source	Where the form comes from.
+	 */
+	private void submitLoginForm(LoginForm form, final FormSource source) {
+		long start = System.nanoTime();
+		// process the login form
+		// target page
+		String target = form.getTarget(plan.getLoginPageUrl());
+		// set up the request to the target
+		HttpRequest resultRequest = new HttpRequest(target);
+		// hidden inputs
+		for(Map.Entry<String, String> input: form.getHiddenInputs().entrySet()) {
+			resultRequest.data(input.getKey(), input.getValue());
+		}
+		// add the password to the connection, the name of the password field
+		// changes for every request
+		resultRequest.data(form.getPasswordField(), password);
+		// finally, also add the username
+		resultRequest.data(plan.getUsernameField(), username);
+		long buildTime = System.nanoTime() - start;
+		timings.add(Stage.FORM_BUILD, buildTime);
+		logger.log(Event.FORM_SUBMITTED, id, form.getHiddenInputs().size(), buildTime);
+
+		// post the form and retrieve the result
+		listeners.notifyNewStageReached("Submitting login information...");
+		currentFetch = new AsyncResultFetch(client, plan.getClassifier(), new AsyncResultFetchCallback() {
+
+			public void onSuccess(Result result) {
+				currentFetch = null;
+				LoginSession.this.onResultPageFetched(result, source);
+			}
+
+			public void onIOException(IOException e) {
+				currentFetch = null;
+				if(source == FormSource.CACHED && (e instanceof ConnectException || e instanceof ConnectTimeoutException)) {
+					// the form was not sent, so it may still be sent the
+					// regular way; after any other failure it may have been
+					fetchLoginPage();
+					return;
+				}
+				String description = "Failed to fetch the result page (" + describe(e) + ")";
+				Platform.getInstance().error(TAG, description);
+				logError(e);
+				listeners.notifyProcedureError(description);
+				// procedure finished
+			}
+
+		}).setRetryPolicy(manager.getRetryPolicy()).execute(resultRequest, deadline, timings);
+	}
+
+	/**
+	 * Called after the async result page fetch when the page was classified.
+	 *
+	 * @param result
+	 * @param source	Where the submitted form came from.
+	 */
+	private void onResultPageFetched(Result result, FormSource source) {
+		Outcome outcome = result.getOutcome();
+		LoginFormCache formCache = manager.getFormCache();
+		if(source == FormSource.CACHED) {
+			// The server may have rejected the cached form, in which case it
+			// shows the login form again: retry the regular way. A refusal is
+			// final, so a wrong password is not submitted twice.
+			if(outcome == Outcome.LOGIN_PAGE) {
+				onFastPathMiss();
+				return;
+			}
+			formCache.recordHit();
+			logger.log(Event.CACHED_FORM_ACCEPTED, id, formCache.getHits(), formCache.getMisses());
+		}
+		if(outcome == Outcome.FAILURE) {
+			logger.log(Event.FAILED, id);
+			listeners.notifyProcedureFailure(result.getMessage());
+		} else if(outcome == Outcome.LOGIN_PAGE) {
+			// the login form is shown again: the submitted form was not
+			// accepted, the device is not online
+			logger.log(Event.FORM_REJECTED, id, source == FormSource.PREFETCHED ? 1 : 0);
+			if(source == FormSource.PREFETCHED) {
+				// the prefetched form went stale: retry with a fresh one
+				fetchLoginPage();
+				return;
+			}
+			String description = "The login form was not accepted.";
+			Platform.getInstance().error(TAG, description);
+			listeners.notifyProcedureError(description);
+			// procedure finished
+		} else {
+			logger.log(Event.SUCCEEDED, id, outcome.ordinal());
+			lastLoginTime = System.currentTimeMillis();
+			listeners.notifyProcedureSuccess();
+		}
+	}
+
+	/**
+	 * Called when the server did not accept the cached login form: falls back
+	 * to the regular procedure.
+	 */
+	private void onFastPathMiss() {
+		LoginFormCache formCache = manager.getFormCache();
+		formCache.recordMiss();
+		logger.log(Event.CACHED_FORM_REJECTED, id, formCache.getHits(), formCache.getMisses());
+		fetchLoginPage();
+	}
+
+	/************************************
+	 * HELPER METHODS
+	 ************************************/
+
+	/**
+	 * Called when the procedure ended in success, failure or error: reports
+	 * its timings and gives up its slot.
+	 */
+	private void finishProcedure() {
+		if(timings != null) {
+			StageTimings finished = timings;
+			timings = null;
+			finished.finish();
+			manager.reportTimings(finished);
+		}
+		manager.releaseSlot(this, true);
+	}
+
+	/**
+	 * Returns whether a request with the given credentials replaces the
+	 * running procedure.
+	 */
+	private boolean supersedes(String username, String password) {
+		switch(supersedePolicy) {
+			case ALWAYS:
+				return true;
+			case ON_CHANGED_CREDENTIALS:
+				return !equal(this.username, username) || !equal(this.password, password);
+			default:
+				return false;
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Cancels the fetch in progress or stops waiting for the prefetch or for
+	 * a slot. Returns whether a procedure was running.
+	 */
+	private boolean cancelCurrentFetch() {
+		boolean running = manager.releaseSlot(this, false);
+		waitingForPrefetch = false;
+		// a cancelled procedure does not count
+		timings = null;
+		if(currentFetch != null) {
+			currentFetch.cancel();
+			currentFetch = null;
+		}
+		return running;
+	}
+
+	private void logError(IOException e) {
+		logger.log(Event.ERROR, id, (e instanceof DeadlineExceededException) ? 1 : 0);
+	}
+
+	/**
+	 * Returns a short description of the given exception for the user.
+	 */
+	private static String describe(IOException e) {
+		if(e instanceof DeadlineExceededException) {
+			return "timed out";
+		}
+		return e.getClass().getName() + ": " + e.getMessage();
+	}
+
+	/**
+	 * Called when the prefetch failed. A waiting login procedure fetches the
+	 * login page itself, so the error is reported the regular way.
+	 */
+	private void onPrefetchFailed() {
+		logger.log(Event.PREFETCH_FAILED, id);
+		prefetching = false;
+		if(waitingForPrefetch) {
+			waitingForPrefetch = false;
+			fetchLoginPage();
+		}
+	}
+
+	/**
+	 * Returns the prefetched login form if it is still fresh and forgets it,
+	 * null otherwise.
+	 */
+	private LoginForm takePrefetchedForm() {
+		LoginForm result = isPrefetchExpired() ? null : prefetchedForm;
+		prefetchedForm = null;
+		return result;
+	}
+
+	private boolean isPrefetchExpired() {
+		return Platform.getInstance().elapsedRealtime() - prefetchedAt > PREFETCH_TTL;
+	}
+}
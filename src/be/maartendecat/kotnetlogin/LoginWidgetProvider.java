@@ -0,0 +1,62 @@
+package be.maartendecat.kotnetlogin;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.widget.RemoteViews;
+
+/**
+ * The home screen widget: logs in with one tap, without opening the app.
+ *
+ * A tap starts the {@link AutoLoginService}, which runs the login procedure
+ * in the background and shows its progress and outcome in the widget through
+ * {@link #showStatus(Context, String)}.
+ *
+ * @author maartend
+ *
+ */
+public class LoginWidgetProvider extends AppWidgetProvider {
+
+	/**
+	 * The status shown when no login is running.
+	 */
+	public static final String IDLE_STATUS = "Tap to log in";
+
+	/************************************
+	 * APP WIDGET PROVIDER METHODS
+	 ************************************/
+
+	@Override
+	public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+		appWidgetManager.updateAppWidget(appWidgetIds, createViews(context, IDLE_STATUS));
+	}
+
+	/************************************
+	 * STATUS
+	 ************************************/
+
+	/**
+	 * Shows the given status in all widgets on the home screen, if any.
+	 */
+	public static void showStatus(Context context, String status) {
+		AppWidgetManager.getInstance(context).updateAppWidget(
+				new ComponentName(context, LoginWidgetProvider.class), createViews(context, status));
+	}
+
+	/************************************
+	 * HELPER METHODS
+	 ************************************/
+
+	private static RemoteViews createViews(Context context, String status) {
+		RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget);
+		views.setTextViewText(R.id.widgetStatus, status);
+		Intent intent = new Intent(context, AutoLoginService.class);
+		intent.setAction(AutoLoginService.ACTION_LOGIN);
+		views.setOnClickPendingIntent(R.id.widget, PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+		return views;
+	}
+
+}
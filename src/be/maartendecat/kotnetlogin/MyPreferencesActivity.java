@@ -1,6 +1,9 @@
 package be.maartendecat.kotnetlogin;
 
+import java.util.List;
+
 import android.os.Bundle;
+import android.preference.ListPreference;
 import android.preference.PreferenceActivity;
 
 public class MyPreferencesActivity extends PreferenceActivity {
@@ -9,6 +12,19 @@ public class MyPreferencesActivity extends PreferenceActivity {
 	public void onCreate(Bundle savedInstanceState) {
 	    super.onCreate(savedInstanceState);
 	    addPreferencesFromResource(R.xml.preferences);
+	    
+	    // the institutions are only known at runtime
+	    InstitutionProfiles.initialize(this);
+	    List<InstitutionProfile> profiles = InstitutionProfiles.getInstance().getProfiles();
+	    CharSequence[] names = new CharSequence[profiles.size()];
+	    CharSequence[] ids = new CharSequence[profiles.size()];
+	    for(int i = 0; i < profiles.size(); i++) {
+	    	names[i] = profiles.get(i).getName();
+	    	ids[i] = profiles.get(i).getId();
+	    }
+	    ListPreference institution = (ListPreference) findPreference("institution");
+	    institution.setEntries(names);
+	    institution.setEntryValues(ids);
 	}
 
 }
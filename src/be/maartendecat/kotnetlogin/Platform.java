@@ -0,0 +1,58 @@
+package be.maartendecat.kotnetlogin;
+
+/**
+ * What the login core needs from the platform it runs on: a main thread to
+ * deliver results on, a clock and a log. The core itself (everything except
+ * the activities, services, receivers and what they use) does not depend on
+ * Android, so it also runs on a plain JVM, see {@link JvmPlatform}.
+ *
+ * The platform is set once, before the core is used: by
+ * KotnetLoginApplication in the app.
+ *
+ * @author maartend
+ *
+ */
+public abstract class Platform {
+
+	/************************************
+	 * STATIC SINGLETON STUFF
+	 ************************************/
+
+	private static volatile Platform instance;
+
+	public static Platform getInstance() {
+		if(instance == null) {
+			throw new NullPointerException("initialize before requesting an instance!");
+		}
+		return instance;
+	}
+
+	public static void initialize(Platform platform) {
+		if(instance == null) {
+			instance = platform;
+		}
+	}
+
+	/************************************
+	 * PLATFORM
+	 ************************************/
+
+	/**
+	 * Runs the given task on the main thread, the one all methods of the
+	 * {@link LoginManager} and its sessions are called from.
+	 */
+	public abstract void runOnMainThread(Runnable task);
+
+	/**
+	 * Returns the milliseconds since some fixed point in time, also counting
+	 * while the device sleeps.
+	 */
+	public abstract long elapsedRealtime();
+
+	public abstract void info(String tag, String message);
+
+	public abstract void warn(String tag, String message);
+
+	public abstract void error(String tag, String message);
+
+}
@@ -0,0 +1,368 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classifies the page returned after submitting the login form, while it is
+ * being read and without building a DOM.
+ *
+ * The classifier looks for a table of markers in the raw bytes of the page.
+ * Reading stops at the first failure marker, and the page is read a bit
+ * further to extract the error message, the text of the first paragraph
+ * after the marker. Reading also stops at the first success marker, so most
+ * of a successful page is never read; a success marker must therefore be a
+ * text that comes after the place where a failure marker could still appear.
+ * Login page markers only count when the page ends without a failure or
+ * success marker, as a refusal page may show the login form before saying
+ * what went wrong. Runs of whitespace are treated as a single space, both in
+ * the page and in the markers. When the page ends without any marker, the
+ * login is considered successful.
+ *
+ * The markers are encoded in the charset of the page. When it is not known,
+ * they are looked for both in UTF-8 and in ISO-8859-1.
+ *
+ * @author maartend
+ *
+ */
+public class ResultClassifier {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * The maximal length of an error message, in bytes of the page.
+	 */
+	private static final int MAX_MESSAGE = 2048;
+
+	/**
+	 * The charsets the markers are looked for in when the page does not say.
+	 */
+	private static final String[] DEFAULT_CHARSETS = { "UTF-8", "ISO-8859-1" };
+
+	/****************************
+	 * OUTCOMES AND MARKERS
+	 ****************************/
+
+	public enum Outcome {
+		/**
+		 * The login succeeded.
+		 */
+		SUCCESS,
+		/**
+		 * The login failed, e.g. because the credentials were not correct.
+		 */
+		FAILURE,
+		/**
+		 * The login form was shown again, the submitted form was not accepted.
+		 */
+		LOGIN_PAGE;
+	}
+
+	/**
+	 * A piece of text that, when found in the page, determines the outcome.
+	 */
+	public static class Marker {
+
+		private final Outcome outcome;
+		private final String text;
+
+		public Marker(Outcome outcome, String text) {
+			if(text.trim().length() == 0) {
+				throw new IllegalArgumentException("Empty marker");
+			}
+			this.outcome = outcome;
+			this.text = text;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	/**
+	 * The markers used when none are given.
+	 */
+	public static final List<Marker> DEFAULT_MARKERS = Collections.unmodifiableList(Arrays.asList(
+			new Marker(Outcome.FAILURE, "Login NIET geslaagd"),
+			new Marker(Outcome.SUCCESS, "Je bent aangemeld als"),
+			new Marker(Outcome.LOGIN_PAGE, "name=\"netlogin\""),
+			new Marker(Outcome.LOGIN_PAGE, "name='netlogin'"),
+			new Marker(Outcome.LOGIN_PAGE, "name=netlogin")));
+
+	/**
+	 * The result of a classification: the outcome and, on failure, the error
+	 * message.
+	 */
+	public static class Result {
+
+		private final Outcome outcome;
+		private final String message;
+
+		public Result(Outcome outcome, String message) {
+			this.outcome = outcome;
+			this.message = message;
+		}
+
+		public Outcome getOutcome() {
+			return outcome;
+		}
+
+		/**
+		 * Returns the error message for a FAILURE, null otherwise.
+		 */
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final Marker[] markers;
+
+	/**
+	 * The patterns of the markers per charset (the empty string for pages
+	 * that do not say), compiled when first needed.
+	 */
+	private final ConcurrentHashMap<String, Pattern[]> patterns = new ConcurrentHashMap<String, Pattern[]>();
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public ResultClassifier() {
+		this(DEFAULT_MARKERS);
+	}
+
+	public ResultClassifier(List<Marker> markers) {
+		this.markers = new ArrayList<Marker>(markers).toArray(new Marker[markers.size()]);
+	}
+
+	/****************************
+	 * CLASSIFICATION
+	 ****************************/
+
+	/**
+	 * Reads the given page up to the first failure or success marker, or to
+	 * its end, and classifies it. The stream is not closed.
+	 *
+	 * @param charset	The charset of the page, null if not known.
+	 */
+	public Result classify(InputStream in, String charset) throws IOException {
+		Pattern[] patterns = getPatterns(charset);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int[] states = new int[patterns.length];
+		Marker found = null;
+		boolean previousWhitespace = false;
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			for(int i = 0; i < read; i++) {
+				byte b = buffer[i];
+				if(isWhitespace(b)) {
+					if(previousWhitespace) {
+						continue;
+					}
+					previousWhitespace = true;
+					b = ' ';
+				} else {
+					previousWhitespace = false;
+				}
+				for(int m = 0; m < patterns.length; m++) {
+					Pattern pattern = patterns[m];
+					int state = states[m];
+					while(state > 0 && pattern.bytes[state] != b) {
+						state = pattern.failure[state - 1];
+					}
+					if(pattern.bytes[state] == b) {
+						state++;
+					}
+					if(state == pattern.bytes.length) {
+						if(pattern.marker.outcome == Outcome.FAILURE) {
+							return failure(pattern, buffer, i + 1, read, in);
+						}
+						if(pattern.marker.outcome == Outcome.SUCCESS) {
+							return new Result(Outcome.SUCCESS, null);
+						}
+						if(found == null) {
+							found = pattern.marker;
+						}
+						state = pattern.failure[state - 1];
+					}
+					states[m] = state;
+				}
+			}
+		}
+		return new Result(found == null ? Outcome.SUCCESS : found.outcome, null);
+	}
+
+	/****************************
+	 * HELPER METHODS
+	 ****************************/
+
+	/**
+	 * Returns the result for a found failure marker. The error message is read
+	 * from the rest of the page, starting with the unprocessed bytes in the
+	 * buffer, in the charset the marker was found in.
+	 */
+	private Result failure(Pattern pattern, byte[] buffer, int offset, int length, InputStream in) throws IOException {
+		String message = readFirstParagraph(buffer, offset, length, in, pattern.charset);
+		return new Result(Outcome.FAILURE, message == null ? pattern.marker.text : message);
+	}
+
+	/**
+	 * Returns the patterns of the markers for a page in the given charset,
+	 * null if not known.
+	 */
+	private Pattern[] getPatterns(String charset) {
+		String key = (charset == null || !isSupported(charset)) ? "" : charset.toLowerCase(Locale.US);
+		Pattern[] result = patterns.get(key);
+		if(result == null) {
+			String[] charsets = (key.length() == 0) ? DEFAULT_CHARSETS : new String[] { charset };
+			List<Pattern> compiled = new ArrayList<Pattern>();
+			for(Marker marker: markers) {
+				byte[] previous = null;
+				for(String name: charsets) {
+					byte[] bytes = normalize(marker.text, name);
+					// the same bytes in both charsets for ASCII markers
+					if(!Arrays.equals(bytes, previous)) {
+						compiled.add(new Pattern(marker, name, bytes));
+					}
+					previous = bytes;
+				}
+			}
+			result = compiled.toArray(new Pattern[compiled.size()]);
+			patterns.putIfAbsent(key, result);
+		}
+		return result;
+	}
+
+	private static boolean isSupported(String charset) {
+		try {
+			return Charset.isSupported(charset);
+		} catch (IllegalCharsetNameException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the text of the first paragraph (&lt;p&gt; element) in the rest of
+	 * the page. Returns null if there is none.
+	 */
+	private static String readFirstParagraph(byte[] buffer, int offset, int length, InputStream in, String charset) throws IOException {
+		byte[] rest = new byte[BUFFER_SIZE + MAX_MESSAGE];
+		int restLength = length - offset;
+		System.arraycopy(buffer, offset, rest, 0, restLength);
+		int read;
+		while(restLength < rest.length && (read = in.read(rest, restLength, rest.length - restLength)) != -1) {
+			restLength += read;
+		}
+		String page = new String(rest, 0, restLength, charset);
+		String lower = page.toLowerCase();
+		int start = indexOfTag(lower, "<p", 0);
+		if(start == -1) {
+			return null;
+		}
+		start = lower.indexOf('>', start);
+		if(start == -1) {
+			return null;
+		}
+		int end = lower.indexOf("</p", start);
+		if(end == -1) {
+			end = Math.min(page.length(), start + 1 + MAX_MESSAGE);
+		}
+		String text = page.substring(start + 1, end).replaceAll("<[^>]*>", "").replaceAll("\\s+", " ").trim();
+		return LoginFormExtractor.decodeEntities(text);
+	}
+
+	/**
+	 * Returns the index of the given start tag (e.g. "<p") in the given
+	 * lowercase text, making sure it is not the start of a longer tag name.
+	 */
+	private static int indexOfTag(String text, String tag, int from) {
+		int index = text.indexOf(tag, from);
+		while(index != -1) {
+			int next = index + tag.length();
+			if(next < text.length()) {
+				char c = text.charAt(next);
+				if(c == '>' || c == '/' || Character.isWhitespace(c)) {
+					return index;
+				}
+			}
+			index = text.indexOf(tag, next);
+		}
+		return -1;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+	}
+
+	/**
+	 * Returns the bytes of the given marker text in the given charset, with
+	 * whitespace runs collapsed into a single space.
+	 */
+	private static byte[] normalize(String text, String charset) {
+		try {
+			return text.trim().replaceAll("\\s+", " ").getBytes(charset);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Computes the Knuth-Morris-Pratt failure function of the given pattern:
+	 * the length of the longest proper prefix that is also a suffix of
+	 * pattern[0..i].
+	 */
+	private static int[] failureFunction(byte[] pattern) {
+		int[] failure = new int[pattern.length];
+		int k = 0;
+		for(int i = 1; i < pattern.length; i++) {
+			while(k > 0 && pattern[k] != pattern[i]) {
+				k = failure[k - 1];
+			}
+			if(pattern[k] == pattern[i]) {
+				k++;
+			}
+			failure[i] = k;
+		}
+		return failure;
+	}
+
+	/****************************
+	 * HELPER CLASSES
+	 ****************************/
+
+	/**
+	 * A marker encoded in a charset, ready to be looked for.
+	 */
+	private static class Pattern {
+
+		private final Marker marker;
+		private final String charset;
+		private final byte[] bytes;
+		private final int[] failure;
+
+		Pattern(Marker marker, String charset, byte[] bytes) {
+			this.marker = marker;
+			this.charset = charset;
+			this.bytes = bytes;
+			this.failure = failureFunction(bytes);
+		}
+	}
+
+}
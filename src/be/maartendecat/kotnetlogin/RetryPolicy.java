@@ -0,0 +1,178 @@
+package be.maartendecat.kotnetlogin;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import be.maartendecat.kotnetlogin.StageTimings.Stage;
+
+/**
+ * Decides which failed requests are tried again, and when.
+ *
+ * Only failures to connect and timeouts are retried: an answer of the
+ * server, such as a rejected password, never is. Requests that are not
+ * idempotent (the POST of the login form) are only retried when they were not
+ * sent at all. Between attempts, the policy backs off exponentially with
+ * jitter, so clients that failed together do not retry together. A retry that
+ * would not fit in the deadline is not attempted. Every attempt but the last
+ * gets socket timeouts of a share of the remaining time, so a timed out
+ * attempt leaves room for the ones after it.
+ *
+ * The policy also decides when the login page is fetched a second time in
+ * parallel ("hedged") because the first fetch is slower than usual.
+ *
+ * @author maartend
+ *
+ */
+public class RetryPolicy {
+
+	/**
+	 * No retries and no hedging.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+	/**
+	 * Three attempts, backing off from 200ms up to 2s, hedging requests that
+	 * are slower than 95% of the earlier ones.
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(3, 200, 2000, 95);
+
+	/**
+	 * The minimal delay before hedging and the minimal number of recorded
+	 * login page fetches needed to compute it.
+	 */
+	private static final long MIN_HEDGE_DELAY = 300;
+	private static final long MIN_HEDGE_SAMPLES = 20;
+
+	/**
+	 * The minimal socket timeout of an attempt that is not the last (in
+	 * milliseconds).
+	 */
+	private static final long MIN_ATTEMPT_TIMEOUT = 1000;
+
+	private final int maxAttempts;
+	private final long baseBackoff;
+	private final long maxBackoff;
+	private final double hedgePercentile;
+	private final Random random = new Random();
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	/**
+	 * @param maxAttempts		The maximal number of attempts, including the first.
+	 * @param baseBackoff		The wait before the first retry (in milliseconds).
+	 * 							It doubles for every next retry.
+	 * @param maxBackoff		The maximal wait between attempts (in milliseconds).
+	 * @param hedgePercentile	The percentile (0-100) of earlier fetch times after
+	 * 							which a request is hedged, 0 for no hedging.
+	 */
+	public RetryPolicy(int maxAttempts, long baseBackoff, long maxBackoff, double hedgePercentile) {
+		this.maxAttempts = maxAttempts;
+		this.baseBackoff = baseBackoff;
+		this.maxBackoff = maxBackoff;
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/****************************
+	 * RETRIES
+	 ****************************/
+
+	/**
+	 * Returns whether the given failure of a request may be retried.
+	 *
+	 * @param idempotent	Whether the request may be sent twice.
+	 */
+	public boolean isRetryable(Exception e, boolean idempotent) {
+		if(e instanceof ConnectException || e instanceof ConnectTimeoutException) {
+			return true;
+		}
+		return idempotent && e instanceof SocketTimeoutException;
+	}
+
+	/**
+	 * Returns the time to wait after the given number of failed attempts (in
+	 * milliseconds): half of the exponential backoff plus a random part of
+	 * the other half.
+	 */
+	public long getBackoffMillis(int failedAttempts) {
+		long backoff = Math.min(maxBackoff, baseBackoff << Math.min(failedAttempts - 1, 20));
+		long half = backoff / 2;
+		synchronized(random) {
+			return half + (half > 0 ? (long) (random.nextDouble() * (backoff - half)) : 0);
+		}
+	}
+
+	/**
+	 * Returns the socket timeout for the given attempt (counting from 1) (in
+	 * milliseconds): an equal share of the remaining time for each attempt
+	 * that is left, but at least MIN_ATTEMPT_TIMEOUT. Returns 0 (no other
+	 * limit than the deadline) for the last attempt.
+	 */
+	public long getAttemptTimeoutMillis(int attempt, Deadline deadline) {
+		int left = maxAttempts - attempt + 1;
+		if(left <= 1 || deadline == Deadline.NONE) {
+			return 0;
+		}
+		return Math.max(MIN_ATTEMPT_TIMEOUT, deadline.remainingMillis() / left);
+	}
+
+	/**
+	 * Runs the given attempt, retrying it according to this policy.
+	 *
+	 * @param idempotent	Whether the request of the attempt may be sent twice.
+	 * @throws Exception	The failure of the last attempt.
+	 */
+	public <T> T call(Attempt<T> attempt, boolean idempotent, Deadline deadline) throws Exception {
+		for(int attempts = 1; ; attempts++) {
+			try {
+				return attempt.call(deadline.withMaxTimeout(getAttemptTimeoutMillis(attempts, deadline)));
+			} catch (Exception e) {
+				if(attempts >= maxAttempts || !isRetryable(e, idempotent)) {
+					throw e;
+				}
+				long backoff = getBackoffMillis(attempts);
+				if(backoff >= deadline.remainingMillis()) {
+					throw e;
+				}
+				Thread.sleep(backoff);
+			}
+		}
+	}
+
+	/****************************
+	 * HEDGING
+	 ****************************/
+
+	/**
+	 * Returns how long to wait for a fetch of the login page before hedging
+	 * it (in milliseconds), based on the given histogram. Returns -1 if the
+	 * fetch should not be hedged: hedging is off or too little is known.
+	 */
+	public long getHedgeDelayMillis(LatencyHistogram histogram) {
+		if(hedgePercentile <= 0 || histogram == null || histogram.getCount(Stage.LOGIN_PAGE) < MIN_HEDGE_SAMPLES) {
+			return -1;
+		}
+		return Math.max(MIN_HEDGE_DELAY, histogram.getPercentile(Stage.LOGIN_PAGE, hedgePercentile));
+	}
+
+	/****************************
+	 * ATTEMPT
+	 ****************************/
+
+	/**
+	 * A single attempt at a request.
+	 */
+	public interface Attempt<T> {
+
+		/**
+		 * Makes the attempt.
+		 *
+		 * @param deadline	The deadline of the request, with the socket
+		 * 					timeouts of this attempt.
+		 */
+		T call(Deadline deadline) throws Exception;
+	}
+
+}
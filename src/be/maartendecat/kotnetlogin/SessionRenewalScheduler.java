@@ -0,0 +1,270 @@
+package be.maartendecat.kotnetlogin;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import be.maartendecat.kotnetlogin.ConnectivityProbe.Status;
+import be.maartendecat.kotnetlogin.LoginManager.LoginProcedureListener;
+
+/**
+ * Renews the Kotnet session shortly before it expires, so a long-running
+ * session never drops (if the user enabled this).
+ *
+ * The lifetime of a session is configured by the user or learned: when a
+ * login finds the device held back by netlogin, the previous session lasted
+ * at most since the previous login. The estimate only goes down, to no less
+ * than MIN_LIFETIME.
+ *
+ * The scheduler uses an inexact repeating RTC alarm, so its wakeups are
+ * batched with those of other apps and it never wakes up the device by
+ * itself. The alarm fires every 15 minutes from shortly before the renewal
+ * is due. When the device is not on the Wi-Fi network of the last login, the
+ * alarm backs off to longer intervals, up to half a day, until the next
+ * login.
+ *
+ * @author maartend
+ *
+ */
+public class SessionRenewalScheduler implements LoginProcedureListener {
+
+	private static final String TAG = "SessionRenewalScheduler";
+
+	private static final String PREFS_NAME = "renewal";
+
+	/**
+	 * The lifetime assumed until a shorter one is learned, and the minimal
+	 * lifetime that is learned (in milliseconds).
+	 */
+	private static final long DEFAULT_LIFETIME = 4 * AlarmManager.INTERVAL_HOUR;
+	private static final long MIN_LIFETIME = AlarmManager.INTERVAL_HALF_HOUR;
+
+	/**
+	 * How long before the expiry the session is renewed (in milliseconds).
+	 */
+	private static final long RENEW_MARGIN = 20 * 60 * 1000;
+
+	/**
+	 * The alarm intervals, from the regular one to the longest back-off. Only
+	 * these intervals are batched with other alarms.
+	 */
+	private static final long[] INTERVALS = {
+		AlarmManager.INTERVAL_FIFTEEN_MINUTES,
+		AlarmManager.INTERVAL_HALF_HOUR,
+		AlarmManager.INTERVAL_HOUR,
+		AlarmManager.INTERVAL_HALF_DAY };
+
+	/************************************
+	 * STATIC SINGLETON STUFF
+	 ************************************/
+
+	private static SessionRenewalScheduler instance;
+
+	public static SessionRenewalScheduler getInstance() {
+		if(instance == null) {
+			throw new NullPointerException("initialize before requesting an instance!");
+		}
+		return instance;
+	}
+
+	public static void initialize(Context ctx) {
+		if(instance == null) {
+			instance = new SessionRenewalScheduler(ctx.getApplicationContext());
+		}
+	}
+
+	/************************************
+	 * FIELDS
+	 ************************************/
+
+	private final Context context;
+	private final SharedPreferences state;
+	private final LoginSession session;
+
+	/************************************
+	 * CONSTRUCTOR
+	 ************************************/
+
+	private SessionRenewalScheduler(Context context) {
+		this.context = context;
+		this.state = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		this.session = LoginManager.getInstance().getDefaultSession();
+		session.registerLoginProcedureListener(this);
+	}
+
+	/************************************
+	 * SCHEDULING
+	 ************************************/
+
+	/**
+	 * Returns the lifetime of a session: the configured one if any, the
+	 * learned one otherwise (in milliseconds).
+	 */
+	public long getLifetime() {
+		String configured = PreferenceManager.getDefaultSharedPreferences(context).getString("session_lifetime", "");
+		try {
+			long minutes = Long.parseLong(configured.trim());
+			if(minutes > 0) {
+				return minutes * 60 * 1000;
+			}
+		} catch (NumberFormatException e) {
+			// not configured, use the learned one
+		}
+		return state.getLong("lifetime", DEFAULT_LIFETIME);
+	}
+
+	/**
+	 * Called by the {@link AutoLoginService} when the alarm fires: once the
+	 * account details are loaded, renews the session if that is due and the
+	 * device is on the network of the last login, backs off otherwise.
+	 */
+	public void onAlarm() {
+		// the account details are loaded in the background, reading them
+		// before would block the main thread
+		final AccountManager am = AccountManager.getInstance();
+		am.whenLoaded(new Runnable() {
+			public void run() {
+				renewIfDue(am);
+			}
+		});
+	}
+
+	/**
+	 * Stops renewing the session.
+	 */
+	public void cancel() {
+		alarmManager().cancel(alarmIntent());
+	}
+
+	/************************************
+	 * LOGIN PROCEDURE LISTENER METHODS
+	 ************************************/
+
+	public void onLoginProcedureStarted(String username) {
+
+	}
+
+	public void onNewStageReached(String description) {
+
+	}
+
+	public void onProcedureError(String description) {
+		// the alarm keeps going, the next one tries again
+	}
+
+	public void onProcedureSuccess() {
+		long loginTime = session.getLastLoginTime();
+		long previous = state.getLong("login", 0);
+		if(loginTime == 0 || loginTime == previous) {
+			// already online, the session did not change
+			return;
+		}
+		SharedPreferences.Editor edit = state.edit();
+		if(previous != 0 && session.getLastProbeStatus() == Status.NETLOGIN) {
+			learnLifetime(edit, loginTime - previous);
+		}
+		edit.putLong("login", loginTime);
+		edit.putString("ssid", currentSsid());
+		edit.putInt("backoff", 0);
+		edit.commit();
+		if(isEnabled()) {
+			schedule(getRenewTime() - INTERVALS[0], INTERVALS[0]);
+		}
+	}
+
+	public void onProcedureFailure(String description) {
+		// wrong credentials: renewing won't help
+		cancel();
+	}
+
+	/************************************
+	 * HELPER METHODS
+	 ************************************/
+
+	/**
+	 * Renews the session if that is due and the device is on the network of
+	 * the last login, backs off otherwise. The account details must be loaded.
+	 */
+	private void renewIfDue(AccountManager am) {
+		if(!isEnabled()) {
+			cancel();
+			return;
+		}
+		long renewAt = getRenewTime();
+		if(System.currentTimeMillis() < renewAt - INTERVALS[0]) {
+			// woken up early along with other alarms
+			return;
+		}
+		String ssid = currentSsid();
+		if(ssid == null || !ssid.equals(state.getString("ssid", null))) {
+			backOff();
+			return;
+		}
+		if(!am.isUsernameSet() || !am.isPasswordSet()) {
+			cancel();
+			return;
+		}
+		Log.i(TAG, "Renewing session");
+		session.renew(am.getUsername(), am.getPassword());
+	}
+
+	private boolean isEnabled() {
+		return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("renew", false);
+	}
+
+	private long getRenewTime() {
+		return state.getLong("login", 0) + getLifetime() - RENEW_MARGIN;
+	}
+
+	/**
+	 * The previous session expired within the given time after it started:
+	 * lowers the learned lifetime if needed.
+	 */
+	private void learnLifetime(SharedPreferences.Editor edit, long expiredWithin) {
+		long lifetime = state.getLong("lifetime", DEFAULT_LIFETIME);
+		if(expiredWithin < lifetime) {
+			lifetime = Math.max(MIN_LIFETIME, expiredWithin);
+			Log.i(TAG, "Learned session lifetime: " + lifetime / 60000 + " minutes");
+			edit.putLong("lifetime", lifetime);
+		}
+	}
+
+	/**
+	 * Moves the alarm to the next longer interval.
+	 */
+	private void backOff() {
+		int backoff = Math.min(state.getInt("backoff", 0) + 1, INTERVALS.length - 1);
+		state.edit().putInt("backoff", backoff).commit();
+		Log.i(TAG, "Not on the network of the last login, checking again in " + INTERVALS[backoff] / 60000 + " minutes");
+		schedule(System.currentTimeMillis() + INTERVALS[backoff], INTERVALS[backoff]);
+	}
+
+	private void schedule(long triggerAt, long interval) {
+		alarmManager().setInexactRepeating(AlarmManager.RTC, triggerAt, interval, alarmIntent());
+	}
+
+	private PendingIntent alarmIntent() {
+		Intent intent = new Intent(context, AutoLoginService.class);
+		intent.setAction(AutoLoginService.ACTION_RENEW);
+		return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	private AlarmManager alarmManager() {
+		return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+	}
+
+	/**
+	 * Returns the SSID of the current Wi-Fi network, null if not connected.
+	 */
+	private String currentSsid() {
+		WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+		WifiInfo info = (wifi == null) ? null : wifi.getConnectionInfo();
+		return (info == null) ? null : info.getSSID();
+	}
+
+}
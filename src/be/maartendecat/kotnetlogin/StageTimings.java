@@ -0,0 +1,207 @@
+package be.maartendecat.kotnetlogin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The time spent in each stage of one login procedure. When a stage occurs
+ * more than once (e.g., a connection is set up for the GET and for the POST),
+ * the times are added up.
+ *
+ * The code doing the work records its stages into the timings of the fetch
+ * running on the current thread (see {@link #record}), so the timings do not
+ * have to be passed through every layer. The timings also count the requests
+ * and the bytes they transferred (see {@link #recordTransfer}).
+ *
+ * @author maartend
+ *
+ */
+public class StageTimings {
+
+	/****************************
+	 * STAGES
+	 ****************************/
+
+	public enum Stage {
+		/**
+		 * Resolving the host name.
+		 */
+		DNS,
+		/**
+		 * Setting up the TCP connection.
+		 */
+		CONNECT,
+		/**
+		 * The TLS handshake.
+		 */
+		TLS,
+		/**
+		 * Waiting for the response after the request was sent.
+		 */
+		FIRST_BYTE,
+		/**
+		 * Waiting for the body of the response.
+		 */
+		DOWNLOAD,
+		/**
+		 * Extracting the login form from the login page, without the time
+		 * spent waiting for the page.
+		 */
+		PARSE,
+		/**
+		 * Filling in the login form.
+		 */
+		FORM_BUILD,
+		/**
+		 * Sending the login form.
+		 */
+		POST,
+		/**
+		 * Classifying the result page, without the time spent waiting for
+		 * the page.
+		 */
+		CLASSIFY,
+		/**
+		 * Fetching the login page as a whole, from sending the request until
+		 * the form is extracted. Overlaps the stages above.
+		 */
+		LOGIN_PAGE;
+	}
+
+	/****************************
+	 * CURRENT THREAD
+	 ****************************/
+
+	private static final ThreadLocal<StageTimings> current = new ThreadLocal<StageTimings>();
+
+	/**
+	 * Sets the timings recorded into by the current thread, null for none.
+	 */
+	static void setCurrent(StageTimings timings) {
+		current.set(timings);
+	}
+
+	/**
+	 * Returns the timings recorded into by the current thread, null for none.
+	 */
+	static StageTimings current() {
+		return current.get();
+	}
+
+	/**
+	 * Adds the given time to the given stage of the timings of the current
+	 * thread. Nothing happens if the current thread has no timings.
+	 */
+	public static void record(Stage stage, long nanos) {
+		StageTimings timings = current.get();
+		if(timings != null) {
+			timings.add(stage, nanos);
+		}
+	}
+
+	/**
+	 * Adds a request with a body of the given size, on the wire and after
+	 * decompression, to the timings of the current thread. Nothing happens if
+	 * the current thread has no timings.
+	 */
+	public static void recordTransfer(long wireBytes, long decodedBytes) {
+		StageTimings timings = current.get();
+		if(timings != null) {
+			timings.addTransfer(1, wireBytes, decodedBytes);
+		}
+	}
+
+	/****************************
+	 * FIELDS
+	 ****************************/
+
+	private final AtomicLongArray nanos = new AtomicLongArray(Stage.values().length);
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong wireBytes = new AtomicLong();
+	private final AtomicLong decodedBytes = new AtomicLong();
+	private final long start = System.nanoTime();
+	private volatile long end = -1;
+
+	/****************************
+	 * RECORDING
+	 ****************************/
+
+	public void add(Stage stage, long nanos) {
+		this.nanos.addAndGet(stage.ordinal(), nanos);
+	}
+
+	public void addTransfer(long requests, long wireBytes, long decodedBytes) {
+		this.requests.addAndGet(requests);
+		this.wireBytes.addAndGet(wireBytes);
+		this.decodedBytes.addAndGet(decodedBytes);
+	}
+
+	/**
+	 * Adds the times of all stages and the transfers of the given timings.
+	 */
+	public void addAll(StageTimings other) {
+		for(Stage stage: Stage.values()) {
+			add(stage, other.getNanos(stage));
+		}
+		addTransfer(other.getRequests(), other.getWireBytes(), other.getDecodedBytes());
+	}
+
+	/**
+	 * Marks the end of the procedure.
+	 */
+	public void finish() {
+		end = System.nanoTime();
+	}
+
+	/****************************
+	 * QUERIES
+	 ****************************/
+
+	public long getNanos(Stage stage) {
+		return nanos.get(stage.ordinal());
+	}
+
+	public long getMillis(Stage stage) {
+		return getNanos(stage) / 1000000L;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of bytes of the response bodies, as sent by the
+	 * server.
+	 */
+	public long getWireBytes() {
+		return wireBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes of the response bodies, after decompression.
+	 */
+	public long getDecodedBytes() {
+		return decodedBytes.get();
+	}
+
+	/**
+	 * Returns the time from the start of the procedure to its end, or to now
+	 * if it has not finished yet.
+	 */
+	public long getTotalMillis() {
+		long until = (end == -1) ? System.nanoTime() : end;
+		return (until - start) / 1000000L;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("total " + getTotalMillis() + "ms");
+		for(Stage stage: Stage.values()) {
+			result.append(", ").append(stage.name().toLowerCase()).append(' ').append(getMillis(stage)).append("ms");
+		}
+		result.append(", ").append(getRequests()).append(" requests, ").append(getWireBytes()).append(" bytes received (")
+			.append(getDecodedBytes()).append(" decompressed)");
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,95 @@
+package be.maartendecat.kotnetlogin;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * SSL socket factory that notes when a TCP connection is handed over to be
+ * wrapped in TLS, so the time to connect can be split into the TCP connect
+ * and the TLS handshake (see {@link #takeLayeredAt()}).
+ *
+ * HttpsURLConnection on Android first connects a plain socket and then
+ * layers TLS over it with {@link #createSocket(Socket, String, int, boolean)}.
+ * Implementations that connect an SSL socket directly are not split: their
+ * handshake counts as connecting.
+ *
+ * @author maartend
+ *
+ */
+public class TimingSSLSocketFactory extends SSLSocketFactory {
+
+	private static final ThreadLocal<Long> layeredAt = new ThreadLocal<Long>();
+
+	private final SSLSocketFactory delegate;
+
+	/****************************
+	 * CONSTRUCTOR
+	 ****************************/
+
+	public TimingSSLSocketFactory(SSLSocketFactory delegate) {
+		this.delegate = delegate;
+	}
+
+	/****************************
+	 * TIMING
+	 ****************************/
+
+	/**
+	 * Returns the System.nanoTime() at which the current thread last layered
+	 * TLS over a connected socket and forgets it, -1 if it did not.
+	 */
+	public static long takeLayeredAt() {
+		Long result = layeredAt.get();
+		layeredAt.remove();
+		return result == null ? -1 : result;
+	}
+
+	/****************************
+	 * SSL SOCKET FACTORY
+	 ****************************/
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		layeredAt.set(System.nanoTime());
+		return delegate.createSocket(s, host, port, autoClose);
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return delegate.createSocket();
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return delegate.createSocket(host, port);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return delegate.createSocket(host, port, localHost, localPort);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return delegate.createSocket(host, port);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return delegate.createSocket(address, port, localAddress, localPort);
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+
+}